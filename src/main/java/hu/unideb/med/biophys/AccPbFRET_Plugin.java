@@ -22,6 +22,7 @@
 package hu.unideb.med.biophys;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.Roi;
@@ -36,8 +37,6 @@ import ij.plugin.HyperStackConverter;
 import ij.plugin.StackEditor;
 import ij.plugin.WindowOrganizer;
 import ij.plugin.filter.Analyzer;
-import ij.plugin.filter.GaussianBlur;
-import ij.process.FHT;
 import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
@@ -64,10 +63,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.text.DecimalFormat;
 import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -85,12 +88,13 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 
-public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowListener {
+public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowListener, ImageListener {
 
     private final String imagej2Version = "2.3.0";
     private final String imagejVersion = "1.53f";
@@ -111,9 +115,13 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private ApplyMaskDialog applyMaskDialog;
     private CalculateImgRatioDialog calculateImgRatioDialog;
     private ShiftDialog shiftDialog;
+    private AutoThresholdDialog autoThresholdDialog;
     private DonorBlCorrDialog donorBlCorrDialog;
     private AcceptorCTCorrDialog acceptorCTCorrDialog;
     private AcceptorPPCorrDialog acceptorPPCorrDialog;
+    private ParallelFretEngine fretEngine;
+    private FilePrefetcher filePrefetcher;
+    private ImageRegistration imageRegistration;
     private JMenuBar menuBar;
     private JMenu fileMenu;
     private JMenu imageMenu;
@@ -128,6 +136,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private JMenuItem bleachingMaskMenuItem;
     private JMenuItem calculateImgRatioMenuItem;
     private JMenuItem thresholdMenuItem;
+    private JMenuItem autoThresholdMenuItem;
     private JMenuItem shiftMenuItem;
     private JMenuItem lutFireMenuItem;
     private JMenuItem lutSpectrumMenuItem;
@@ -139,12 +148,22 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private JMenuItem saveMessagesMenuItem;
     private JMenuItem clearMessagesMenuItem;
     private JMenuItem semiAutomaticMenuItem;
+    private JMenuItem batchMenuItem;
+    private JCheckBoxMenuItem subdirectoriesMenuItem;
+    private JCheckBoxMenuItem resultCacheMenuItem;
+    private JMenuItem clearCacheMenuItem;
+    private JMenuItem threadsMenuItem;
+    private JMenuItem smoothAllMenuItem;
     private JMenuItem resetImagesMenuItem;
     private JCheckBoxMenuItem donorBlCorrMenuItem;
     private JCheckBoxMenuItem accCrossTalkCorrMenuItem;
     private JCheckBoxMenuItem accPhotoprCorrMenuItem;
     private JCheckBoxMenuItem partialBlCorrMenuItem;
     private JCheckBoxMenuItem debugMenuItem;
+    private JCheckBoxMenuItem subPixelRegMenuItem;
+    private JCheckBoxMenuItem coarseToFineRegMenuItem;
+    private JCheckBoxMenuItem recursiveBlurMenuItem;
+    private JCheckBoxMenuItem nanAwareBlurMenuItem;
     private JButton setDonorBeforeButton;
     private JButton setDonorAfterButton;
     private JButton setAcceptorBeforeButton;
@@ -202,8 +221,9 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private JScrollPane logScrollPane;
     private final DateTimeFormatter dateTimeFormat;
     private final DateTimeFormatter timeFormat;
-    private File[] automaticallyProcessedFiles = null;
-    private int currentlyProcessedFile = 0;
+    private DirectoryScanner automaticallyProcessedDirectory = null;
+    private Iterator<File> automaticallyProcessedFiles = null;
+    private File nextProcessedFile = null;
     private String currentlyProcessedFileName = null;
     private String currentDirectory = null;
     public Color originalButtonColor = null;
@@ -217,6 +237,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         ToolTipManager.sharedInstance().setDismissDelay(10000);
         dateTimeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z");
         timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss");
+        fretEngine = new ParallelFretEngine();
+        filePrefetcher = new FilePrefetcher(fretEngine);
+        imageRegistration = new ImageRegistration(new ParallelFftTransform(fretEngine));
+        ImagePlus.addImageListener(this);
         createGui();
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
@@ -267,6 +291,24 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         semiAutomaticMenuItem.setActionCommand("semiAutomaticProcessing");
         semiAutomaticMenuItem.addActionListener(this);
         fileMenu.add(semiAutomaticMenuItem);
+        batchMenuItem = new JMenuItem("Batch Processing...");
+        batchMenuItem.setActionCommand("batchProcessing");
+        batchMenuItem.addActionListener(this);
+        fileMenu.add(batchMenuItem);
+        subdirectoriesMenuItem = new JCheckBoxMenuItem("Include Subdirectories");
+        subdirectoriesMenuItem.setSelected(false);
+        fileMenu.add(subdirectoriesMenuItem);
+        resultCacheMenuItem = new JCheckBoxMenuItem("Use Result Cache in Batch Processing");
+        resultCacheMenuItem.setSelected(false);
+        fileMenu.add(resultCacheMenuItem);
+        clearCacheMenuItem = new JMenuItem("Clear Result Cache");
+        clearCacheMenuItem.setActionCommand("clearResultCache");
+        clearCacheMenuItem.addActionListener(this);
+        fileMenu.add(clearCacheMenuItem);
+        threadsMenuItem = new JMenuItem("Processing Threads...");
+        threadsMenuItem.setActionCommand("setThreads");
+        threadsMenuItem.addActionListener(this);
+        fileMenu.add(threadsMenuItem);
         fileMenu.addSeparator();
         resetImagesMenuItem = new JMenuItem("Reset All");
         resetImagesMenuItem.setActionCommand("resetImages");
@@ -304,11 +346,32 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         thresholdMenuItem.setActionCommand("threshold");
         thresholdMenuItem.addActionListener(this);
         imageMenu.add(thresholdMenuItem);
+        autoThresholdMenuItem = new JMenuItem("Automatic Threshold...");
+        autoThresholdMenuItem.setActionCommand("autoThreshold");
+        autoThresholdMenuItem.addActionListener(this);
+        imageMenu.add(autoThresholdMenuItem);
+        imageMenu.addSeparator();
+        smoothAllMenuItem = new JMenuItem("Blur All Channels");
+        smoothAllMenuItem.setActionCommand("smoothAll");
+        smoothAllMenuItem.addActionListener(this);
+        imageMenu.add(smoothAllMenuItem);
+        recursiveBlurMenuItem = new JCheckBoxMenuItem("Recursive Gaussian Blur");
+        recursiveBlurMenuItem.setSelected(false);
+        imageMenu.add(recursiveBlurMenuItem);
+        nanAwareBlurMenuItem = new JCheckBoxMenuItem("NaN-Aware Blur");
+        nanAwareBlurMenuItem.setSelected(false);
+        imageMenu.add(nanAwareBlurMenuItem);
         imageMenu.addSeparator();
         shiftMenuItem = new JMenuItem("Shift Image...");
         shiftMenuItem.setActionCommand("shiftimage");
         shiftMenuItem.addActionListener(this);
         imageMenu.add(shiftMenuItem);
+        subPixelRegMenuItem = new JCheckBoxMenuItem("Sub-Pixel Registration");
+        subPixelRegMenuItem.setSelected(false);
+        imageMenu.add(subPixelRegMenuItem);
+        coarseToFineRegMenuItem = new JCheckBoxMenuItem("Coarse-to-Fine Registration");
+        coarseToFineRegMenuItem.setSelected(false);
+        imageMenu.add(coarseToFineRegMenuItem);
         imageMenu.addSeparator();
         histogramMenuItem = new JMenuItem("Histogram");
         histogramMenuItem.setActionCommand("histogram");
@@ -1115,6 +1178,12 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                     }
                     new ImageConverter(WindowManager.getCurrentImage()).convertToGray32();
                     break;
+                case "autoThreshold":
+                    if (autoThresholdDialog == null) {
+                        autoThresholdDialog = new AutoThresholdDialog(this);
+                    }
+                    autoThresholdDialog.setVisible(true);
+                    break;
                 case "shiftimage":
                     if (WindowManager.getCurrentImage() == null) {
                         logError("No open image.");
@@ -1441,37 +1510,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No ROI is defined for donor before bleaching.");
                         return;
                     }
-                    int width = donorBefore.getWidth();
-                    int height = donorBefore.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorBefore.getRoi().contains(i, j)) {
-                                sum += donorBefore.getProcessor().getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvg = (float) (sum / count);
-                    float i = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            i = donorBefore.getProcessor().getPixelValue(x, y);
-                            i = i - backgroundAvg;
-                            if (i < 0) {
-                                i = 0;
-                            }
-                            donorBefore.getProcessor().putPixelValue(x, y, i);
-                        }
-                    }
-                    donorBefore.updateAndDraw();
-                    donorBefore.killRoi();
-                    donorBeforeSave = donorBefore.getProcessor().duplicate();
-                    log("Subtracted background (" + backgroundAvg + ") of donor before bleaching.");
-                    subtractDonorBeforeButton.setBackground(greenColor);
-                    subtractDonorBeforeButton.setOpaque(true);
-                    subtractDonorBeforeButton.setBorderPainted(false);
+                    subtractBackground(donorBefore);
                     break;
                 }
                 case "subtractDonorAfter": {
@@ -1482,37 +1521,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No ROI is defined for donor after bleaching.");
                         return;
                     }
-                    int width = donorAfter.getWidth();
-                    int height = donorAfter.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorAfter.getRoi().contains(i, j)) {
-                                sum += donorAfter.getProcessor().getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvg = (float) (sum / count);
-                    float i = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            i = donorAfter.getProcessor().getPixelValue(x, y);
-                            i = i - backgroundAvg;
-                            if (i < 0) {
-                                i = 0;
-                            }
-                            donorAfter.getProcessor().putPixelValue(x, y, i);
-                        }
-                    }
-                    donorAfter.updateAndDraw();
-                    donorAfter.killRoi();
-                    donorAfterSave = donorAfter.getProcessor().duplicate();
-                    log("Subtracted background (" + backgroundAvg + ") of donor after bleaching.");
-                    subtractDonorAfterButton.setBackground(greenColor);
-                    subtractDonorAfterButton.setOpaque(true);
-                    subtractDonorAfterButton.setBorderPainted(false);
+                    subtractBackground(donorAfter);
                     break;
                 }
                 case "subtractAcceptorBefore": {
@@ -1523,36 +1532,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No ROI is defined for acceptor before bleaching.");
                         return;
                     }
-                    int width = acceptorBefore.getWidth();
-                    int height = acceptorBefore.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (acceptorBefore.getRoi().contains(i, j)) {
-                                sum += acceptorBefore.getProcessor().getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvg = (float) (sum / count);
-                    float i = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            i = acceptorBefore.getProcessor().getPixelValue(x, y) - backgroundAvg;
-                            if (i < 0) {
-                                i = 0;
-                            }
-                            acceptorBefore.getProcessor().putPixelValue(x, y, i);
-                        }
-                    }
-                    acceptorBefore.updateAndDraw();
-                    acceptorBefore.killRoi();
-                    acceptorBeforeSave = acceptorBefore.getProcessor().duplicate();
-                    log("Subtracted background (" + backgroundAvg + ") of acceptor before bleaching.");
-                    subtractAcceptorBeforeButton.setBackground(greenColor);
-                    subtractAcceptorBeforeButton.setOpaque(true);
-                    subtractAcceptorBeforeButton.setBorderPainted(false);
+                    subtractBackground(acceptorBefore);
                     break;
                 }
                 case "subtractAcceptorAfter": {
@@ -1563,36 +1543,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No ROI is defined for acceptor after bleaching.");
                         return;
                     }
-                    int width = acceptorAfter.getWidth();
-                    int height = acceptorAfter.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (acceptorAfter.getRoi().contains(i, j)) {
-                                sum += acceptorAfter.getProcessor().getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvg = (float) (sum / count);
-                    float i = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            i = acceptorAfter.getProcessor().getPixelValue(x, y) - backgroundAvg;
-                            if (i < 0) {
-                                i = 0;
-                            }
-                            acceptorAfter.getProcessor().putPixelValue(x, y, i);
-                        }
-                    }
-                    acceptorAfter.updateAndDraw();
-                    acceptorAfter.killRoi();
-                    acceptorAfterSave = acceptorAfter.getProcessor().duplicate();
-                    log("Subtracted background (" + backgroundAvg + ") of acceptor after bleaching.");
-                    subtractAcceptorAfterButton.setBackground(greenColor);
-                    subtractAcceptorAfterButton.setOpaque(true);
-                    subtractAcceptorAfterButton.setBorderPainted(false);
+                    subtractBackground(acceptorAfter);
                     break;
                 }
                 case "thresholdDonorBefore":
@@ -1715,105 +1666,45 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                     if (donorBefore == null) {
                         logError("No image is set as donor before bleaching.");
                         return;
-                    } else {
-                        if (sigmaFieldDB.getText().trim().isEmpty()) {
-                            logError("Sigma (radius) has to be given for Gaussian blur.");
-                            return;
-                        } else {
-                            double sigma = 0;
-                            try {
-                                sigma = Double.parseDouble(sigmaFieldDB.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Sigma (radius) has to be given for Gaussian blur.");
-                                return;
-                            }
-                            GaussianBlur gb = new GaussianBlur();
-                            gb.blurGaussian(donorBefore.getProcessor(), sigma, sigma, 0.01);
-                            donorBefore.updateAndDraw();
-                            smoothDonorBeforeButton.setBackground(greenColor);
-                            smoothDonorBeforeButton.setOpaque(true);
-                            smoothDonorBeforeButton.setBorderPainted(false);
-                            log("Gaussian blurred donor before bleaching with sigma (radius) " + Double.parseDouble(sigmaFieldDB.getText().trim()) + " px.");
-                        }
                     }
+                    smoothChannels(donorBefore);
                     break;
                 case "smoothDAfter":
                     if (donorAfter == null) {
                         logError("No image is set as donor after bleaching.");
                         return;
-                    } else {
-                        if (sigmaFieldDA.getText().trim().isEmpty()) {
-                            logError("Sigma (radius) has to be given for Gaussian blur.");
-                            return;
-                        } else {
-                            double sigma = 0;
-                            try {
-                                sigma = Double.parseDouble(sigmaFieldDA.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Sigma (radius) has to be given for Gaussian blur.");
-                                return;
-                            }
-                            GaussianBlur gb = new GaussianBlur();
-                            gb.blurGaussian(donorAfter.getProcessor(), sigma, sigma, 0.01);
-                            donorAfter.updateAndDraw();
-                            smoothDonorAfterButton.setBackground(greenColor);
-                            smoothDonorAfterButton.setOpaque(true);
-                            smoothDonorAfterButton.setBorderPainted(false);
-                            log("Gaussian blurred donor after bleaching with sigma (radius) " + Double.parseDouble(sigmaFieldDA.getText().trim()) + " px.");
-                        }
                     }
+                    smoothChannels(donorAfter);
                     break;
                 case "smoothABefore":
                     if (acceptorBefore == null) {
                         logError("No image is set as acceptor before bleaching.");
                         return;
-                    } else {
-                        if (sigmaFieldAB.getText().trim().isEmpty()) {
-                            logError("Sigma (radius) has to be given for Gaussian blur.");
-                            return;
-                        } else {
-                            double sigma = 0;
-                            try {
-                                sigma = Double.parseDouble(sigmaFieldAB.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Sigma (radius) has to be given for Gaussian blur.");
-                                return;
-                            }
-                            GaussianBlur gb = new GaussianBlur();
-                            gb.blurGaussian(acceptorBefore.getProcessor(), sigma, sigma, 0.01);
-                            acceptorBefore.updateAndDraw();
-                            smoothAcceptorBeforeButton.setBackground(greenColor);
-                            smoothAcceptorBeforeButton.setOpaque(true);
-                            smoothAcceptorBeforeButton.setBorderPainted(false);
-                            log("Gaussian blurred acceptor before bleaching with sigma (radius) " + Double.parseDouble(sigmaFieldAB.getText().trim()) + " px.");
-                        }
                     }
+                    smoothChannels(acceptorBefore);
                     break;
                 case "smoothAAfter":
                     if (acceptorAfter == null) {
                         logError("No image is set as acceptor after bleaching.");
                         return;
-                    } else {
-                        if (sigmaFieldAA.getText().trim().isEmpty()) {
-                            logError("Sigma (radius) has to be given for Gaussian blur.");
-                            return;
-                        } else {
-                            double sigma = 0;
-                            try {
-                                sigma = Double.parseDouble(sigmaFieldAA.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Sigma (radius) has to be given for Gaussian blur.");
-                                return;
-                            }
-                            GaussianBlur gb = new GaussianBlur();
-                            gb.blurGaussian(acceptorAfter.getProcessor(), sigma, sigma, 0.01);
-                            acceptorAfter.updateAndDraw();
-                            smoothAcceptorAfterButton.setBackground(greenColor);
-                            smoothAcceptorAfterButton.setOpaque(true);
-                            smoothAcceptorAfterButton.setBorderPainted(false);
-                            log("Gaussian blurred acceptor after bleaching with sigma (radius) " + Double.parseDouble(sigmaFieldAA.getText().trim()) + " px.");
-                        }
                     }
+                    smoothChannels(acceptorAfter);
+                    break;
+                case "smoothAll":
+                    if (donorBefore == null) {
+                        logError("No image is set as donor before bleaching.");
+                        return;
+                    } else if (donorAfter == null) {
+                        logError("No image is set as donor after bleaching.");
+                        return;
+                    } else if ((partialBlCorrMenuItem.isSelected() || useAcceptorAsMask.isSelected()) && acceptorBefore == null) {
+                        logError("No image is set as acceptor before bleaching.");
+                        return;
+                    } else if (partialBlCorrMenuItem.isSelected() && acceptorAfter == null) {
+                        logError("No image is set as acceptor after bleaching.");
+                        return;
+                    }
+                    smoothChannels(getProcessedChannels());
                     break;
                 case "registerImages":
                     if (donorBefore == null) {
@@ -1823,113 +1714,20 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No image is set as donor after bleaching.");
                         return;
                     } else {
-                        DecimalFormat df = new DecimalFormat("#0.000");
-                        FHT fht1 = new FHT(donorBefore.getProcessor().duplicate());
-                        FHT fht2 = new FHT(donorAfter.getProcessor().duplicate());
-                        if (!fht1.powerOf2Size() || !fht2.powerOf2Size()) {
-                            logError("Images must be square and power of 2 size for registration.");
+                        int width = donorBefore.getWidth();
+                        int height = donorBefore.getHeight();
+                        if (!imageRegistration.isSupportedSize(width, height) || donorAfter.getWidth() != width || donorAfter.getHeight() != height) {
+                            logError("Images must have the same size, at least 2x2 pixels, for registration.");
                         } else {
-                            fht1.setShowProgress(false);
-                            fht1.transform();
-                            fht2.setShowProgress(false);
-                            fht2.transform();
-                            FHT res = fht1.conjugateMultiply(fht2);
-                            res.setShowProgress(false);
-                            res.inverseTransform();
-                            ImagePlus image = new ImagePlus("Result of registration", res);
-                            ImageProcessor ip = image.getProcessor();
-                            int width = ip.getWidth();
-                            int height = ip.getHeight();
-                            int maximum = 0;
-                            int maxx = -1;
-                            int maxy = -1;
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (ip.getPixel(i, j) > maximum) {
-                                        maximum = ip.getPixel(i, j);
-                                        maxx = i;
-                                        maxy = j;
-                                    }
+                            FretPipeline pipeline = createPipeline(new FretParameters().withRegistration(subPixelRegMenuItem.isSelected(), coarseToFineRegMenuItem.isSelected(), applyShiftCB.isSelected()));
+                            double[] shift = pipeline.register();
+                            if (shift[0] != 0 || shift[1] != 0) {
+                                donorAfter.updateAndDraw();
+                                if (applyShiftCB.isSelected() && acceptorAfter != null) {
+                                    acceptorAfter.updateAndDraw();
                                 }
                             }
-                            int shiftX = 0;
-                            int shiftY = 0;
-                            if (maxx != 0 || maxy != 0) {
-                                ShiftDialog sd = new ShiftDialog(this);
-                                if (maxy > height / 2) {
-                                    log("Shifting donor after image up " + (height - maxy) + " pixel" + ((height - maxy) > 1 ? "s" : "") + ".");
-                                    sd.shiftUp(donorAfter, height - maxy);
-                                    if (applyShiftCB.isSelected()) {
-                                        sd.shiftUp(acceptorAfter, height - maxy);
-                                    }
-                                } else if (maxy != 0) {
-                                    log("Shifting donor after image down " + maxy + " pixel" + (maxy > 1 ? "s" : "") + ".");
-                                    sd.shiftDown(donorAfter, maxy);
-                                    if (applyShiftCB.isSelected()) {
-                                        sd.shiftDown(acceptorAfter, maxy);
-                                    }
-                                }
-                                if (maxx > width / 2) {
-                                    log("Shifting donor after image to the left " + (width - maxx) + " pixel" + ((width - maxx) > 1 ? "s" : "") + ".");
-                                    sd.shiftLeft(donorAfter, width - maxx);
-                                    if (applyShiftCB.isSelected()) {
-                                        sd.shiftLeft(acceptorAfter, width - maxx);
-                                    }
-                                } else if (maxx != 0) {
-                                    log("Shifting donor after image to the right " + maxx + " pixel" + (maxx > 1 ? "s" : "") + ".");
-                                    sd.shiftRight(donorAfter, maxx);
-                                    if (applyShiftCB.isSelected()) {
-                                        sd.shiftRight(acceptorAfter, maxx);
-                                    }
-                                }
-                                actionPerformed(new ActionEvent(registerButton, 1, "registerImages"));
-                            } else {
-                                double countAll = 0;
-                                double count = 0;
-                                float db = 0;
-                                float da = 0;
-                                double p = 1.10;
-                                log("Registration finished.");
-                                Roi roi = donorBefore.getRoi();
-                                if (roi == null) {
-                                    logWarning("The calculated statistics after registration are more authoritative if there is a ROI defined in the donor before image, and the calculations are based on that.");
-                                    donorAfter.killRoi();
-                                } else {
-                                    donorAfter.setRoi(donorBefore.getRoi());
-                                }
-
-                                ImageStatistics isMeanDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN, null);
-                                ImageStatistics isMeanDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN, null);
-                                ImageStatistics isStdDevDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.STD_DEV, null);
-                                ImageStatistics isStdDevDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.STD_DEV, null);
-
-                                for (int x = 0; x < width; x++) {
-                                    for (int y = 0; y < height; y++) {
-                                        if (roi != null && roi.contains(x, y)) {
-                                            countAll++;
-                                            db = donorBefore.getProcessor().getPixelValue(x, y);
-                                            da = donorAfter.getProcessor().getPixelValue(x, y);
-                                            if (db != 0 && da != 0 && db / da > p) {
-                                                count++;
-                                            }
-                                        } else if (roi == null) {
-                                            countAll++;
-                                            db = donorBefore.getProcessor().getPixelValue(x, y);
-                                            da = donorAfter.getProcessor().getPixelValue(x, y);
-                                            if (db != 0 && da != 0 && db / da > p) {
-                                                count++;
-                                            }
-                                        }
-                                    }
-                                }
-                                log("Relative dispersion (SD/mean) of donor before bleaching image: " + df.format((float) (isStdDevDB.stdDev / isMeanDB.mean)));
-                                log("Relative dispersion (SD/mean) of donor after bleaching image: " + df.format((float) (isStdDevDA.stdDev / isMeanDA.mean)));
-                                df.applyPattern("#0.0");
-                                log(df.format(count / countAll * 100) + "% of pixels has lower intensity by 10% in the donor after than in the donor before image.");
-                                registerButton.setBackground(greenColor);
-                                registerButton.setOpaque(true);
-                                registerButton.setBorderPainted(false);
-                            }
+                            logRegistration(pipeline, shift);
                         }
                     }
                     break;
@@ -2044,37 +1842,13 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No image is set as acceptor after bleaching.");
                         return;
                     } else {
-                        ImageProcessor ipAB = acceptorBefore.getProcessor();
-                        ImageProcessor ipAA = acceptorAfter.getProcessor();
-                        int width = acceptorBefore.getWidth();
-                        int height = acceptorBefore.getHeight();
-                        double sum = 0;
-                        int count = 0;
                         if (acceptorBefore.getRoi() != null) {
                             acceptorAfter.setRoi(acceptorBefore.getRoi());
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (acceptorBefore.getRoi().contains(i, j)) {
-                                        if (!Float.isNaN(ipAA.getPixelValue(i, j)) && !Float.isNaN(ipAB.getPixelValue(i, j))) {
-                                            sum += ipAA.getPixelValue(i, j) / ipAB.getPixelValue(i, j);
-                                            count++;
-                                        }
-                                    }
-                                }
-                            }
                         } else {
                             logWarning("No ROI is defined for acceptor before bleaching.");
                             acceptorAfter.killRoi();
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (!Float.isNaN(ipAA.getPixelValue(i, j)) && !Float.isNaN(ipAB.getPixelValue(i, j))) {
-                                        sum += ipAA.getPixelValue(i, j) / ipAB.getPixelValue(i, j);
-                                        count++;
-                                    }
-                                }
-                            }
                         }
-                        float partialBlCorrFactor = (float) (sum / count);
+                        float partialBlCorrFactor = createPipeline(new FretParameters()).calculatePartialBlCorrection(acceptorBefore.getRoi());
                         DecimalFormat df = new DecimalFormat("#.###");
                         partialBlCorrField.setText(df.format(partialBlCorrFactor));
                         calculatePartialBlCorrButton.setBackground(greenColor);
@@ -2093,174 +1867,16 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("No image is set as acceptor before bleaching.");
                         return;
                     } else {
-                        if (donorBlCorrMenuItem.isSelected() && donorBlCorrField.getText().trim().isEmpty()) {
-                            logError("Bleaching correction factor has to be given.");
-                            return;
-                        } else if (accCrossTalkCorrMenuItem.isSelected() && accCrossTalkCorrField.getText().trim().isEmpty()) {
-                            logError("Acceptor cross-talk correction factor has to be given.");
-                            return;
-                        } else if (accPhotoprCorrMenuItem.isSelected() && accPhotoprCorrField.getText().trim().isEmpty()) {
-                            logError("Acceptor photoproduct correction factor has to be given.");
-                            return;
-                        } else if (partialBlCorrMenuItem.isSelected() && partialBlCorrField.getText().trim().isEmpty()) {
-                            logError("Partial acceptor photobleaching correction factor has to be given.");
+                        FretParameters parameters = getCorrectionParameters();
+                        if (parameters == null) {
                             return;
                         } else {
-                            float donorBlCorr = 1;
-                            if (donorBlCorrMenuItem.isSelected()) {
-                                try {
-                                    donorBlCorr = Float.parseFloat(donorBlCorrField.getText().trim());
-                                } catch (NumberFormatException ex) {
-                                    logError("Donor bleaching correction factor has to be given.");
-                                    return;
-                                }
-                                if (donorBlCorr < 1) {
-                                    logWarning("The donor bleaching correction factor should not be lower than 1.");
-                                }
-                            }
-                            float acceptorCTCorr = 0;
-                            if (accCrossTalkCorrMenuItem.isSelected()) {
-                                try {
-                                    acceptorCTCorr = Float.parseFloat(accCrossTalkCorrField.getText().trim());
-                                } catch (NumberFormatException ex) {
-                                    logError("Acceptor cross-talk correction factor has to be given.");
-                                    return;
-                                }
-                                if (acceptorCTCorr < 0) {
-                                    logWarning("The acceptor cross-talk correction factor should not be lower than 0.");
-                                }
-                            }
-                            float acceptorPPCorr = 0;
-                            if (accPhotoprCorrMenuItem.isSelected()) {
-                                try {
-                                    acceptorPPCorr = Float.parseFloat(accPhotoprCorrField.getText().trim());
-                                } catch (NumberFormatException ex) {
-                                    logError("Acceptor photoproduct correction factor has to be given.");
-                                    return;
-                                }
-                                if (acceptorPPCorr < 0) {
-                                    logWarning("The acceptor photoproduct correction factor should not be lower than 0.");
-                                }
-                            }
-                            float partialBlCorr = 0;
-                            if (partialBlCorrMenuItem.isSelected()) {
-                                try {
-                                    partialBlCorr = Float.parseFloat(partialBlCorrField.getText().trim());
-                                } catch (NumberFormatException ex) {
-                                    logError("Partial acceptor photobleaching correction factor has to be given.");
-                                    return;
-                                }
-                                if (partialBlCorr < 0) {
-                                    logWarning("The partial acceptor photobleaching correction should not be lower than 0.");
-                                }
-                                if (partialBlCorr > 1) {
-                                    logWarning("The partial acceptor photobleaching correction should not be higher than 1.");
-                                }
-                            }
-                            ImageProcessor ipDB = donorBefore.getProcessor().duplicate();
-                            ImageProcessor ipDA = donorAfter.getProcessor().duplicate();
-                            ImageProcessor ipAB = null;
-                            if (acceptorBefore != null) {
-                                ipAB = acceptorBefore.getProcessor().duplicate();
-                            }
-
-                            float[] ipDBP = (float[]) ipDB.getPixels();
-                            float[] ipDAP = (float[]) ipDA.getPixels();
-                            float[] ipABP = null;
-                            if (ipAB != null) {
-                                ipABP = (float[]) ipAB.getPixels();
-                            }
-
-                            if (!partialBlCorrMenuItem.isSelected()) {
-                                // acceptor cross-talk correction
-                                if (accCrossTalkCorrMenuItem.isSelected()) {
-                                    for (int i = 0; i < ipABP.length; i++) {
-                                        if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
-                                            ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
-                                        } else {
-                                            ipDBP[i] = Float.NaN;
-                                        }
-                                    }
-                                }
-
-                                // acceptor photoproduct correction
-                                if (accPhotoprCorrMenuItem.isSelected()) {
-                                    for (int i = 0; i < ipABP.length; i++) {
-                                        if (!Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
-                                            ipDAP[i] = ipDAP[i] - ipABP[i] * acceptorPPCorr;
-                                        } else {
-                                            ipDAP[i] = Float.NaN;
-                                        }
-                                    }
-                                }
-
-                                // donor bleaching correction
-                                if (donorBlCorrMenuItem.isSelected()) {
-                                    for (int i = 0; i < ipDAP.length; i++) {
-                                        if (!Float.isNaN(ipDAP[i])) {
-                                            ipDAP[i] = ipDAP[i] * donorBlCorr;
-                                        } else {
-                                            ipDAP[i] = Float.NaN;
-                                        }
-                                    }
-                                }
-
-                                for (int i = 0; i < ipDAP.length; i++) {
-                                    ipDAP[i] = 1 - (ipDBP[i] / ipDAP[i]);
-                                }
-                            } else {
-                                if (accCrossTalkCorrMenuItem.isSelected()) {
-                                    for (int i = 0; i < ipABP.length; i++) {
-                                        if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
-                                            ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
-                                        } else {
-                                            ipDBP[i] = Float.NaN;
-                                        }
-                                    }
-                                }
-
-                                for (int i = 0; i < ipDBP.length; i++) {
-                                    if (accCrossTalkCorrMenuItem.isSelected() || accPhotoprCorrMenuItem.isSelected()) {
-                                        if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
-                                            ipDAP[i] = (float) (donorBlCorr * (ipDAP[i] - ((double) partialBlCorr * (double) acceptorCTCorr + acceptorPPCorr * ((double) 1 - (double) partialBlCorr)) * ipABP[i]) - (double) partialBlCorr * (double) ipDBP[i]);
-                                        } else {
-                                            ipDAP[i] = Float.NaN;
-                                        }
-                                    } else {
-                                        if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i])) {
-                                            ipDAP[i] = (float) ((double) donorBlCorr * (double) ipDAP[i] - (double) partialBlCorr * (double) ipDBP[i]);
-                                        } else {
-                                            ipDAP[i] = Float.NaN;
-                                        }
-                                    }
-                                }
-
-                                for (int i = 0; i < ipDAP.length; i++) {
-                                    ipDAP[i] = (float) (1 - (((double) 1 - (double) partialBlCorr) * ipDBP[i] / ipDAP[i]));
-                                }
-                            }
-
-                            int width = ipDA.getWidth();
-                            int height = ipDA.getHeight();
-                            float[][] tiPoints = new float[width][height];
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    tiPoints[i][j] = ipDAP[width * j + i];
-                                }
-                            }
-
-                            float iv = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    iv = tiPoints[x][y];
-                                    if (useAcceptorAsMask.isSelected() && (Float.isNaN(ipABP[width * y + x]) || ipABP[width * y + x] == 0)) {
-                                        tiPoints[x][y] = Float.NaN;
-                                    }
-                                }
-                            }
-
-                            FloatProcessor tiFp = new FloatProcessor(tiPoints);
-                            if (transferImage != null && transferImage.getProcessor() != null) {
+                            FloatProcessor tiFp = FretWorkspace.getTransferProcessor(transferImage, donorAfter.getWidth(), donorAfter.getHeight());
+                            createPipeline(parameters).computeTransferImage(tiFp);
+                            if (transferImage != null && transferImage.getProcessor() == tiFp) {
+                                transferImage.setTitle("Transfer image");
+                                transferImage.updateAndDraw();
+                            } else if (transferImage != null && transferImage.getProcessor() != null) {
                                 ColorModel cm = transferImage.getProcessor().getColorModel();
                                 transferImage.setProcessor("Transfer image", tiFp);
                                 transferImage.getProcessor().setColorModel(cm);
@@ -2273,87 +1889,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                             analyzer = new Analyzer();
                             resultsTable = Analyzer.getResultsTable();
                             resultsTable.setPrecision(3);
-                            resultsTable.incrementCounter();
-                            int widthTi = transferImage.getWidth();
-                            int heightTi = transferImage.getHeight();
-                            int currentRow = resultsTable.getCounter();
-                            if (currentlyProcessedFileName != null) {
-                                resultsTable.setValue("File", currentRow, currentlyProcessedFileName);
-                            }
-                            if (transferImage.getRoi() != null) {
-                                Roi roi = transferImage.getRoi();
-                                int count = 0;
-                                int notNan = 0;
-                                for (int i = 0; i < widthTi; i++) {
-                                    for (int j = 0; j < heightTi; j++) {
-                                        if (roi.contains(i, j)) {
-                                            count++;
-                                            if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                                notNan++;
-                                            }
-                                        }
-                                    }
-                                }
-                                resultsTable.addValue("Pixels", count);
-                                resultsTable.addValue("Not NaN p.", notNan);
-                            } else {
-                                int notNan = 0;
-                                for (int i = 0; i < widthTi; i++) {
-                                    for (int j = 0; j < heightTi; j++) {
-                                        if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                            notNan++;
-                                        }
-                                    }
-                                }
-                                resultsTable.addValue("Pixels", widthTi * heightTi);
-                                resultsTable.addValue("Not NaN p.", notNan);
-                            }
-                            ImageStatistics isMean = ImageStatistics.getStatistics(tiFp, Measurements.MEAN, null);
-                            resultsTable.addValue("Mean", (float) isMean.mean);
-                            ImageStatistics isMedian = ImageStatistics.getStatistics(tiFp, Measurements.MEDIAN, null);
-                            resultsTable.addValue("Median", (float) isMedian.median);
-                            ImageStatistics isStdDev = ImageStatistics.getStatistics(tiFp, Measurements.STD_DEV, null);
-                            resultsTable.addValue("Std. dev.", (float) isStdDev.stdDev);
-                            ImageStatistics isMinMax = ImageStatistics.getStatistics(tiFp, Measurements.MIN_MAX, null);
-                            resultsTable.addValue("Min", (float) isMinMax.min);
-                            resultsTable.addValue("Max", (float) isMinMax.max);
-                            if (transferImage.getRoi() != null) {
-                                donorBefore.setRoi(transferImage.getRoi());
-                                donorAfter.setRoi(transferImage.getRoi());
-                                if (acceptorBefore != null) {
-                                    acceptorBefore.setRoi(transferImage.getRoi());
-                                }
-                            } else {
-                                donorBefore.killRoi();
-                                donorAfter.killRoi();
-                                if (acceptorBefore != null) {
-                                    acceptorBefore.killRoi();
-                                }
-                            }
-                            ImageStatistics isMinMaxDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MIN_MAX, null);
-                            resultsTable.addValue("Min (DB)", (float) isMinMaxDB.min);
-                            resultsTable.addValue("Max (DB)", (float) isMinMaxDB.max);
-                            ImageStatistics isDBMean = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN, null);
-                            resultsTable.addValue("Mean (DB)", (float) isDBMean.mean);
-                            ImageStatistics isMinMaxDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MIN_MAX, null);
-                            resultsTable.addValue("Min (DA)", (float) isMinMaxDA.min);
-                            resultsTable.addValue("Max (DA)", (float) isMinMaxDA.max);
-                            ImageStatistics isDAMean = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN, null);
-                            resultsTable.addValue("Mean (DA)", (float) isDAMean.mean);
-                            ImageStatistics isABMean = null;
-                            if (acceptorBefore != null) {
-                                ImageStatistics isMinMaxAB = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MIN_MAX, null);
-                                resultsTable.addValue("Min (AB)", (float) isMinMaxAB.min);
-                                resultsTable.addValue("Max (AB)", (float) isMinMaxAB.max);
-                                isABMean = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MEAN, null);
-                                resultsTable.addValue("Mean (AB)", (float) isABMean.mean);
-                            } else {
-                                resultsTable.addValue("Min (AB)", 0);
-                                resultsTable.addValue("Max (AB)", 0);
-                                resultsTable.addValue("Mean (AB)", 0);
-                            }
-                            analyzer.displayResults();
-                            analyzer.updateHeadings();
+                            measureTransferImage();
                         }
                     }
                     donorBefore.changes = false;
@@ -2385,87 +1921,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("Transfer image required.");
                         return;
                     }
-                    resultsTable.incrementCounter();
-                    int width = transferImage.getWidth();
-                    int height = transferImage.getHeight();
-                    int currentRow = resultsTable.getCounter();
-                    if (currentlyProcessedFileName != null) {
-                        resultsTable.setValue("File", currentRow, currentlyProcessedFileName);
-                    }
-                    if (transferImage.getRoi() != null) {
-                        Roi roi = transferImage.getRoi();
-                        int count = 0;
-                        int notNan = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (roi.contains(i, j)) {
-                                    count++;
-                                    if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                        notNan++;
-                                    }
-                                }
-                            }
-                        }
-                        resultsTable.addValue("Pixels", count);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    } else {
-                        int notNan = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                    notNan++;
-                                }
-                            }
-                        }
-                        resultsTable.addValue("Pixels", width * height);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    }
-                    ImageStatistics isMean = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MEAN, null);
-                    resultsTable.addValue("Mean", (float) isMean.mean);
-                    ImageStatistics isMedian = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MEDIAN, null);
-                    resultsTable.addValue("Median", (float) isMedian.median);
-                    ImageStatistics isStdDev = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.STD_DEV, null);
-                    resultsTable.addValue("Std. dev.", (float) isStdDev.stdDev);
-                    ImageStatistics isMinMax = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MIN_MAX, null);
-                    resultsTable.addValue("Min", (float) isMinMax.min);
-                    resultsTable.addValue("Max", (float) isMinMax.max);
-                    if (transferImage.getRoi() != null) {
-                        donorBefore.setRoi(transferImage.getRoi());
-                        donorAfter.setRoi(transferImage.getRoi());
-                        if (acceptorBefore != null) {
-                            acceptorBefore.setRoi(transferImage.getRoi());
-                        }
-                    } else {
-                        donorBefore.killRoi();
-                        donorAfter.killRoi();
-                        if (acceptorBefore != null) {
-                            acceptorBefore.killRoi();
-                        }
-                    }
-                    ImageStatistics isMinMaxDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MIN_MAX, null);
-                    resultsTable.addValue("Min (DB)", (float) isMinMaxDB.min);
-                    resultsTable.addValue("Max (DB)", (float) isMinMaxDB.max);
-                    ImageStatistics isDBMean = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN, null);
-                    resultsTable.addValue("Mean (DB)", (float) isDBMean.mean);
-                    ImageStatistics isMinMaxDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MIN_MAX, null);
-                    resultsTable.addValue("Min (DA)", (float) isMinMaxDA.min);
-                    resultsTable.addValue("Max (DA)", (float) isMinMaxDA.max);
-                    ImageStatistics isDAMean = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN, null);
-                    resultsTable.addValue("Mean (DA)", (float) isDAMean.mean);
-                    ImageStatistics isABMean = null;
-                    if (acceptorBefore != null) {
-                        ImageStatistics isMinMaxAB = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MIN_MAX, null);
-                        resultsTable.addValue("Min (AB)", (float) isMinMaxAB.min);
-                        resultsTable.addValue("Max (AB)", (float) isMinMaxAB.max);
-                        isABMean = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MEAN, null);
-                        resultsTable.addValue("Mean (AB)", (float) isABMean.mean);
-                    } else {
-                        resultsTable.addValue("Min (AB)", 0);
-                        resultsTable.addValue("Max (AB)", 0);
-                        resultsTable.addValue("Mean (AB)", 0);
-                    }
-                    analyzer.displayResults();
-                    analyzer.updateHeadings();
+                    measureTransferImage();
                     break;
                 }
                 case "semiAutomaticProcessing":
@@ -2475,16 +1931,17 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                             + "1. donor channel (before and after photobleaching)\n"
                             + "2. acceptor channel (before and after photobleaching)\n\n"
                             + "The upper left corner (1/6 x 1/6 of the image) is considered as background.\n"
-                            + "Threshold settings, creation of FRET image and measurements have to be\n"
-                            + "made manually.\n\n"
+                            + "Threshold settings (unless automatic thresholds are set in the Image menu),\n"
+                            + "creation of FRET image and measurements have to be made manually.\n\n"
                             + "Every previously opened image and result window will be closed when you\n"
                             + "click OK.\n\n"
                             + "Click OK to select the directory. To continue with the next "
                             + "image, do\nnot close any windows, just click the Next button.\n", "Semi-Automatic Processing of Images", JOptionPane.OK_CANCEL_OPTION);
                     if (choice == JOptionPane.YES_OPTION) {
-                        currentlyProcessedFile = 0;
                         automaticallyProcessedFiles = null;
+                        nextProcessedFile = null;
                         currentlyProcessedFileName = null;
+                        filePrefetcher.cancel();
                         WindowManager.closeAllWindows();
                         JFileChooser chooser = new JFileChooser(currentDirectory);
                         chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -2499,10 +1956,63 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         }
                         nextButton.setVisible(true);
                         useImageStacks.setSelected(true);
-                        automaticallyProcessedFiles = chooser.getSelectedFile().listFiles();
-                        processFile(0);
+                        automaticallyProcessedDirectory = new DirectoryScanner(chooser.getSelectedFile(), subdirectoriesMenuItem.isSelected());
+                        automaticallyProcessedFiles = automaticallyProcessedDirectory.iterator();
+                        nextProcessedFile = takeNextFile();
+                        processNextFile();
                     }
                     break;
+                case "batchProcessing": {
+                    FretParameters parameters = getCorrectionParameters();
+                    if (parameters == null) {
+                        return;
+                    }
+                    parameters = getSmoothingParameters(parameters);
+                    if (parameters == null) {
+                        return;
+                    }
+                    parameters = getThresholdParameters(parameters);
+                    if (parameters == null) {
+                        return;
+                    }
+                    parameters = parameters.withRegistration(subPixelRegMenuItem.isSelected(), coarseToFineRegMenuItem.isSelected(), applyShiftCB.isSelected());
+                    JFileChooser chooser = new JFileChooser(currentDirectory);
+                    chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                    chooser.setDialogTitle("Select Directory");
+                    chooser.setAcceptAllFileFilterUsed(false);
+                    if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                        log("Batch processing: no directory is selected.");
+                        return;
+                    }
+                    currentDirectory = chooser.getSelectedFile().toString();
+                    log("Batch processing files in directory: " + chooser.getSelectedFile());
+                    setBatchMenuItemsEnabled(false);
+                    final FretParameters batchParameters = parameters;
+                    final DirectoryScanner scanner = new DirectoryScanner(chooser.getSelectedFile(), subdirectoriesMenuItem.isSelected());
+                    BatchJournal journal;
+                    try {
+                        journal = BatchJournal.open(chooser.getSelectedFile());
+                        if (journal.size() > 0) {
+                            log("Finished files are taken from the batch journal: " + journal.getFile());
+                        }
+                    } catch (UncheckedIOException ex) {
+                        logWarning(ex.getMessage() + " The batch is processed without a journal.");
+                        journal = null;
+                    }
+                    final BatchJournal batchJournal = journal;
+                    final ResultCache cache = resultCacheMenuItem.isSelected() ? new ResultCache(ResultCache.getDefaultDirectory()) : null;
+                    new Thread(() -> processBatch(batchParameters, scanner, batchJournal, cache), "AccPbFRET batch processing").start();
+                    break;
+                }
+                case "clearResultCache": {
+                    ResultCache cache = new ResultCache(ResultCache.getDefaultDirectory());
+                    try {
+                        log("Cleared the result cache: " + cache.clear() + " results have been deleted from " + cache.getDirectory() + ".");
+                    } catch (UncheckedIOException ex) {
+                        logError(ex.getMessage());
+                    }
+                    break;
+                }
                 case "nextImage":
                     closeImages();
                     if (!useAcceptorAsMask.isSelected()) {
@@ -2512,8 +2022,32 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                             WindowManager.getCurrentImage().close();
                         }
                     }
-                    processFile(++currentlyProcessedFile);
+                    processNextFile();
                     break;
+                case "setThreads": {
+                    String value = JOptionPane.showInputDialog(this, "Number of threads used for processing:", fretEngine.getThreads());
+                    if (value == null) {
+                        return;
+                    }
+                    int threads;
+                    try {
+                        threads = Integer.parseInt(value.trim());
+                    } catch (NumberFormatException ex) {
+                        logError("The number of threads has to be a positive integer.");
+                        return;
+                    }
+                    if (threads < 1) {
+                        logError("The number of threads has to be a positive integer.");
+                        return;
+                    }
+                    fretEngine.shutdown();
+                    fretEngine = new ParallelFretEngine(threads);
+                    filePrefetcher.shutdown();
+                    filePrefetcher = new FilePrefetcher(fretEngine);
+                    imageRegistration = new ImageRegistration(new ParallelFftTransform(fretEngine));
+                    log("Using " + threads + " thread" + (threads > 1 ? "s" : "") + " for processing.");
+                    break;
+                }
                 case "closeImages":
                     closeImages();
                     resetAll();
@@ -2572,75 +2106,658 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         }
     }
 
-    private void processFile(int currentFile) {
+    /**
+     * Returns the parameters of the enabled corrections, read from the
+     * correction factor fields, or null if a factor is missing.
+     */
+    private FretParameters getCorrectionParameters() {
+        if (donorBlCorrMenuItem.isSelected() && donorBlCorrField.getText().trim().isEmpty()) {
+            logError("Bleaching correction factor has to be given.");
+            return null;
+        } else if (accCrossTalkCorrMenuItem.isSelected() && accCrossTalkCorrField.getText().trim().isEmpty()) {
+            logError("Acceptor cross-talk correction factor has to be given.");
+            return null;
+        } else if (accPhotoprCorrMenuItem.isSelected() && accPhotoprCorrField.getText().trim().isEmpty()) {
+            logError("Acceptor photoproduct correction factor has to be given.");
+            return null;
+        } else if (partialBlCorrMenuItem.isSelected() && partialBlCorrField.getText().trim().isEmpty()) {
+            logError("Partial acceptor photobleaching correction factor has to be given.");
+            return null;
+        }
+        float donorBlCorr = 1;
+        if (donorBlCorrMenuItem.isSelected()) {
+            try {
+                donorBlCorr = Float.parseFloat(donorBlCorrField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Donor bleaching correction factor has to be given.");
+                return null;
+            }
+            if (donorBlCorr < 1) {
+                logWarning("The donor bleaching correction factor should not be lower than 1.");
+            }
+        }
+        float acceptorCTCorr = 0;
+        if (accCrossTalkCorrMenuItem.isSelected()) {
+            try {
+                acceptorCTCorr = Float.parseFloat(accCrossTalkCorrField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Acceptor cross-talk correction factor has to be given.");
+                return null;
+            }
+            if (acceptorCTCorr < 0) {
+                logWarning("The acceptor cross-talk correction factor should not be lower than 0.");
+            }
+        }
+        float acceptorPPCorr = 0;
+        if (accPhotoprCorrMenuItem.isSelected()) {
+            try {
+                acceptorPPCorr = Float.parseFloat(accPhotoprCorrField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Acceptor photoproduct correction factor has to be given.");
+                return null;
+            }
+            if (acceptorPPCorr < 0) {
+                logWarning("The acceptor photoproduct correction factor should not be lower than 0.");
+            }
+        }
+        float partialBlCorr = 0;
+        if (partialBlCorrMenuItem.isSelected()) {
+            try {
+                partialBlCorr = Float.parseFloat(partialBlCorrField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Partial acceptor photobleaching correction factor has to be given.");
+                return null;
+            }
+            if (partialBlCorr < 0) {
+                logWarning("The partial acceptor photobleaching correction should not be lower than 0.");
+            }
+            if (partialBlCorr > 1) {
+                logWarning("The partial acceptor photobleaching correction should not be higher than 1.");
+            }
+        }
+        return new FretParameters()
+                .withDonorBleachingCorrection(donorBlCorrMenuItem.isSelected(), donorBlCorr)
+                .withAcceptorCrossTalkCorrection(accCrossTalkCorrMenuItem.isSelected(), acceptorCTCorr)
+                .withAcceptorPhotoproductCorrection(accPhotoprCorrMenuItem.isSelected(), acceptorPPCorr)
+                .withPartialBleachingCorrection(partialBlCorrMenuItem.isSelected(), partialBlCorr)
+                .withAcceptorAsMask(useAcceptorAsMask.isSelected());
+    }
+
+    /**
+     * Returns the parameters with the sigmas of the four sigma fields, or
+     * null if one of them is missing.
+     */
+    private FretParameters getSmoothingParameters(FretParameters parameters) {
+        double[] sigmas = new double[4];
+        JTextField[] sigmaFields = {sigmaFieldDB, sigmaFieldDA, sigmaFieldAB, sigmaFieldAA};
+        for (int i = 0; i < sigmaFields.length; i++) {
+            try {
+                sigmas[i] = Double.parseDouble(sigmaFields[i].getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Sigma (radius) has to be given for Gaussian blur.");
+                return null;
+            }
+        }
+        return parameters.withSmoothing(sigmas[0], sigmas[1], sigmas[2], sigmas[3], recursiveBlurMenuItem.isSelected(), nanAwareBlurMenuItem.isSelected());
+    }
+
+    /**
+     * Returns the parameters with the methods of the automatic threshold
+     * dialog (none if it has not been opened), or null if they are invalid.
+     */
+    private FretParameters getThresholdParameters(FretParameters parameters) {
+        if (autoThresholdDialog == null) {
+            return parameters;
+        }
+        return autoThresholdDialog.getParameters(parameters);
+    }
+
+    /**
+     * Applies the automatic threshold methods to the channel images which are
+     * set.
+     */
+    public void applyAutoThresholds() {
+        if (donorBefore == null && donorAfter == null && acceptorBefore == null && acceptorAfter == null) {
+            logError("No image is set.");
+            return;
+        }
+        FretParameters parameters = getThresholdParameters(new FretParameters());
+        if (parameters == null) {
+            return;
+        }
+        List<ImagePlus> images = new ArrayList<>();
+        for (ImagePlus image : new ImagePlus[]{donorBefore, donorAfter, acceptorBefore, acceptorAfter}) {
+            if (image != null) {
+                images.add(image);
+            }
+        }
+        autoThreshold(parameters, images.toArray(new ImagePlus[0]));
+    }
+
+    /**
+     * Sets the pixels below the automatic threshold of each image to NaN,
+     * skipping the images without a threshold method.
+     */
+    private void autoThreshold(FretParameters parameters, ImagePlus... images) {
+        List<ImagePlus> thresholded = new ArrayList<>();
+        for (ImagePlus image : images) {
+            if (parameters.getThresholdMethod(getChannel(image)) != AutoThreshold.NONE) {
+                thresholded.add(image);
+            }
+        }
+        int[] channels = new int[thresholded.size()];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = getChannel(thresholded.get(i));
+        }
+        float[] thresholds = createPipeline(parameters).threshold(channels);
+        for (int i = 0; i < channels.length; i++) {
+            thresholded.get(i).updateAndDraw();
+            markThresholded(channels[i], parameters.getThresholdMethod(channels[i]), thresholds[i]);
+        }
+    }
+
+    private void markThresholded(int channel, int method, float threshold) {
+        String methodName = AutoThreshold.METHOD_NAMES[method];
+        if (Float.isNaN(threshold)) {
+            logWarning("No " + methodName + " threshold could be calculated for " + FretPipeline.getChannelName(channel) + ".");
+            return;
+        }
+        log("Set pixels below " + threshold + " (" + methodName + ") to NaN in " + FretPipeline.getChannelName(channel) + ".");
+        JButton button;
+        if (channel == FretPipeline.DONOR_BEFORE) {
+            button = thresholdDonorBeforeButton;
+        } else if (channel == FretPipeline.DONOR_AFTER) {
+            button = thresholdDonorAfterButton;
+        } else if (channel == FretPipeline.ACCEPTOR_BEFORE) {
+            button = thresholdAcceptorBeforeButton;
+        } else {
+            button = thresholdAcceptorAfterButton;
+        }
+        button.setBackground(greenColor);
+        button.setOpaque(true);
+        button.setBorderPainted(false);
+    }
+
+    /**
+     * Logs a registration done by the pipeline: the duration of
+     * coarse-to-fine registration, the shift and the statistics of the donor
+     * images after registration. The same lines are logged for the files
+     * registered now and for the ones prefetched in the background.
+     */
+    private void logRegistration(FretPipeline pipeline, double[] shift) {
+        FretParameters parameters = pipeline.getParameters();
+        if (parameters.isCoarseToFineRegistration()) {
+            ImageRegistration registration = pipeline.getRegistration();
+            ImageProcessor ip = pipeline.getChannel(FretPipeline.DONOR_BEFORE);
+            DecimalFormat msFormat = new DecimalFormat("#0");
+            log("Coarse-to-fine registration (" + registration.getCoarseFactor(ip.getWidth(), ip.getHeight()) + "x downsampled) took " + msFormat.format(registration.getLastDuration()) + " ms, a full-frame registration would take about " + msFormat.format(registration.getLastFullFrameEstimate()) + " ms (estimated from the transform sizes, not measured).");
+        }
+        DecimalFormat df = new DecimalFormat("#0.000");
+        logShift(shift, parameters.isSubPixelRegistration(), df);
+        logRegistrationStatistics(df);
+    }
+
+    private void logShift(double[] shift, boolean subPixel, DecimalFormat df) {
+        if (subPixel) {
+            if (shift[0] != 0 || shift[1] != 0) {
+                log("Shifting donor after image by " + df.format(shift[0]) + " pixels to the right and " + df.format(shift[1]) + " pixels down.");
+            }
+        } else {
+            int shiftX = (int) shift[0];
+            int shiftY = (int) shift[1];
+            if (shiftY < 0) {
+                log("Shifting donor after image up " + (-shiftY) + " pixel" + (-shiftY > 1 ? "s" : "") + ".");
+            } else if (shiftY > 0) {
+                log("Shifting donor after image down " + shiftY + " pixel" + (shiftY > 1 ? "s" : "") + ".");
+            }
+            if (shiftX < 0) {
+                log("Shifting donor after image to the left " + (-shiftX) + " pixel" + (-shiftX > 1 ? "s" : "") + ".");
+            } else if (shiftX > 0) {
+                log("Shifting donor after image to the right " + shiftX + " pixel" + (shiftX > 1 ? "s" : "") + ".");
+            }
+        }
+    }
+
+    /**
+     * Logs the statistics of the donor images after registration, in the ROI
+     * of the donor before image if there is one.
+     */
+    private void logRegistrationStatistics(DecimalFormat df) {
+        int width = donorBefore.getWidth();
+        int height = donorBefore.getHeight();
+        double countAll = 0;
+        double count = 0;
+        float db = 0;
+        float da = 0;
+        double p = 1.10;
+        log("Registration finished.");
+        Roi roi = donorBefore.getRoi();
+        if (roi == null) {
+            logWarning("The calculated statistics after registration are more authoritative if there is a ROI defined in the donor before image, and the calculations are based on that.");
+            donorAfter.killRoi();
+        } else {
+            donorAfter.setRoi(donorBefore.getRoi());
+        }
+
+        ImageStatistics isMeanDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN, null);
+        ImageStatistics isMeanDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN, null);
+        ImageStatistics isStdDevDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.STD_DEV, null);
+        ImageStatistics isStdDevDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.STD_DEV, null);
+
+        RoiMask mask = RoiMask.get(roi != null ? roi : new Roi(0, 0, width, height), width, height);
+        int[] spans = mask.getSpans();
+        float[] dbPixels = (float[]) donorBefore.getProcessor().getPixels();
+        float[] daPixels = (float[]) donorAfter.getProcessor().getPixels();
+        countAll = mask.getPixelCount();
+        for (int y = 0; y < height; y++) {
+            for (int s = mask.getFirstSpan(y); s < mask.getFirstSpan(y + 1); s++) {
+                for (int i = y * width + spans[2 * s]; i < y * width + spans[2 * s + 1]; i++) {
+                    db = dbPixels[i];
+                    da = daPixels[i];
+                    if (db != 0 && da != 0 && db / da > p) {
+                        count++;
+                    }
+                }
+            }
+        }
+        log("Relative dispersion (SD/mean) of donor before bleaching image: " + df.format((float) (isStdDevDB.stdDev / isMeanDB.mean)));
+        log("Relative dispersion (SD/mean) of donor after bleaching image: " + df.format((float) (isStdDevDA.stdDev / isMeanDA.mean)));
+        df.applyPattern("#0.0");
+        log(df.format(count / countAll * 100) + "% of pixels has lower intensity by 10% in the donor after than in the donor before image.");
+        registerButton.setBackground(greenColor);
+        registerButton.setOpaque(true);
+        registerButton.setBorderPainted(false);
+    }
+
+    /**
+     * Returns the channels used by the selected corrections: the donor
+     * images, and the acceptor images needed by partial acceptor
+     * photobleaching correction or by using the acceptor as mask.
+     */
+    private ImagePlus[] getProcessedChannels() {
+        if (partialBlCorrMenuItem.isSelected()) {
+            return new ImagePlus[]{donorBefore, donorAfter, acceptorBefore, acceptorAfter};
+        } else if (useAcceptorAsMask.isSelected()) {
+            return new ImagePlus[]{donorBefore, donorAfter, acceptorBefore};
+        }
+        return new ImagePlus[]{donorBefore, donorAfter};
+    }
+
+    /**
+     * Returns a pipeline working on the processors of the current channel
+     * images.
+     */
+    private FretPipeline createPipeline(FretParameters parameters) {
+        FretPipeline pipeline = new FretPipeline(parameters, fretEngine, imageRegistration);
+        pipeline.setChannels(donorBefore != null ? donorBefore.getProcessor() : null, donorAfter != null ? donorAfter.getProcessor() : null, acceptorBefore != null ? acceptorBefore.getProcessor() : null, acceptorAfter != null ? acceptorAfter.getProcessor() : null);
+        return pipeline;
+    }
+
+    private int getChannel(ImagePlus image) {
+        if (image == donorBefore) {
+            return FretPipeline.DONOR_BEFORE;
+        } else if (image == donorAfter) {
+            return FretPipeline.DONOR_AFTER;
+        } else if (image == acceptorBefore) {
+            return FretPipeline.ACCEPTOR_BEFORE;
+        }
+        return FretPipeline.ACCEPTOR_AFTER;
+    }
+
+    /**
+     * Blurs the given images with the sigma (radius) set for each of them,
+     * all images at the same time. Nothing is blurred if a sigma is missing.
+     */
+    private void smoothChannels(ImagePlus... images) {
+        int[] channels = new int[images.length];
+        double[] sigmas = new double[4];
+        for (int i = 0; i < images.length; i++) {
+            channels[i] = getChannel(images[i]);
+            JTextField sigmaField;
+            if (channels[i] == FretPipeline.DONOR_BEFORE) {
+                sigmaField = sigmaFieldDB;
+            } else if (channels[i] == FretPipeline.DONOR_AFTER) {
+                sigmaField = sigmaFieldDA;
+            } else if (channels[i] == FretPipeline.ACCEPTOR_BEFORE) {
+                sigmaField = sigmaFieldAB;
+            } else {
+                sigmaField = sigmaFieldAA;
+            }
+            try {
+                sigmas[channels[i]] = Double.parseDouble(sigmaField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Sigma (radius) has to be given for Gaussian blur.");
+                return;
+            }
+        }
+        createPipeline(new FretParameters().withSmoothing(sigmas[0], sigmas[1], sigmas[2], sigmas[3], recursiveBlurMenuItem.isSelected(), nanAwareBlurMenuItem.isSelected())).smooth(channels);
+        for (int i = 0; i < images.length; i++) {
+            images[i].updateAndDraw();
+            markSmoothed(channels[i], sigmas[channels[i]]);
+        }
+    }
+
+    private void markSmoothed(int channel, double sigma) {
+        JButton button;
+        if (channel == FretPipeline.DONOR_BEFORE) {
+            button = smoothDonorBeforeButton;
+        } else if (channel == FretPipeline.DONOR_AFTER) {
+            button = smoothDonorAfterButton;
+        } else if (channel == FretPipeline.ACCEPTOR_BEFORE) {
+            button = smoothAcceptorBeforeButton;
+        } else {
+            button = smoothAcceptorAfterButton;
+        }
+        button.setBackground(greenColor);
+        button.setOpaque(true);
+        button.setBorderPainted(false);
+        log("Gaussian blurred " + FretPipeline.getChannelName(channel) + " with sigma (radius) " + sigma + " px.");
+    }
+
+    /**
+     * Subtracts the background measured in the ROI of the first image from
+     * the given images, in one pass over each image.
+     */
+    private void subtractBackground(ImagePlus... images) {
+        int[] channels = new int[images.length];
+        for (int i = 0; i < images.length; i++) {
+            channels[i] = getChannel(images[i]);
+        }
+        float[] backgroundAvgs = createPipeline(new FretParameters()).subtractBackground(images[0].getRoi(), channels);
+        for (int i = 0; i < images.length; i++) {
+            ImagePlus image = images[i];
+            image.updateAndDraw();
+            image.killRoi();
+            if (channels[i] == FretPipeline.DONOR_BEFORE) {
+                donorBeforeSave = image.getProcessor().duplicate();
+            } else if (channels[i] == FretPipeline.DONOR_AFTER) {
+                donorAfterSave = image.getProcessor().duplicate();
+            } else if (channels[i] == FretPipeline.ACCEPTOR_BEFORE) {
+                acceptorBeforeSave = image.getProcessor().duplicate();
+            } else {
+                acceptorAfterSave = image.getProcessor().duplicate();
+            }
+            markBackgroundSubtracted(channels[i], backgroundAvgs[i]);
+        }
+    }
+
+    private void markBackgroundSubtracted(int channel, float average) {
+        JButton button;
+        if (channel == FretPipeline.DONOR_BEFORE) {
+            button = subtractDonorBeforeButton;
+        } else if (channel == FretPipeline.DONOR_AFTER) {
+            button = subtractDonorAfterButton;
+        } else if (channel == FretPipeline.ACCEPTOR_BEFORE) {
+            button = subtractAcceptorBeforeButton;
+        } else {
+            button = subtractAcceptorAfterButton;
+        }
+        log("Subtracted background (" + average + ") of " + FretPipeline.getChannelName(channel) + ".");
+        button.setBackground(greenColor);
+        button.setOpaque(true);
+        button.setBorderPainted(false);
+    }
+
+    /**
+     * Measures the transfer image in the ROI of its window (the whole image
+     * if there is none), the same way after creating it and from the
+     * Measure button.
+     */
+    private void measureTransferImage() {
+        Roi roi = transferImage.getRoi();
+        if (roi != null) {
+            donorBefore.setRoi(roi);
+            donorAfter.setRoi(roi);
+            if (acceptorBefore != null) {
+                acceptorBefore.setRoi(roi);
+            }
+        } else {
+            donorBefore.killRoi();
+            donorAfter.killRoi();
+            if (acceptorBefore != null) {
+                acceptorBefore.killRoi();
+            }
+        }
+        ChannelStatistics[] stats = createPipeline(new FretParameters()).measure((FloatProcessor) transferImage.getProcessor(), roi);
+        addResultsRow(currentlyProcessedFileName, BatchProcessor.getResultValues(stats));
+        analyzer.displayResults();
+        analyzer.updateHeadings();
+    }
+
+    /**
+     * Adds a row to the results table with the statistics of the transfer
+     * image, the donor images and the acceptor before image (if measured).
+     */
+    private void addResultsRow(String fileName, double[] values) {
+        resultsTable.incrementCounter();
+        int currentRow = resultsTable.getCounter();
+        if (fileName != null) {
+            resultsTable.setValue("File", currentRow, fileName);
+        }
+        for (int i = 0; i < values.length; i++) {
+            resultsTable.addValue(BatchProcessor.RESULT_HEADINGS[i], values[i]);
+        }
+    }
+
+    /**
+     * Processes the next file of semi-automatic mode, and starts
+     * preprocessing the one after it in the background.
+     */
+    private void processNextFile() {
         resetAllButtonColors();
-        if (currentFile >= automaticallyProcessedFiles.length) {
+        File file = nextProcessedFile;
+        if (file == null) {
             log("Processing files has been finished.");
             nextButton.setVisible(false);
             IJ.selectWindow("Results");
-            currentlyProcessedFile = 0;
             automaticallyProcessedFiles = null;
             currentlyProcessedFileName = null;
+            filePrefetcher.cancel();
             return;
         }
-        if (!automaticallyProcessedFiles[currentFile].isFile() || !(automaticallyProcessedFiles[currentFile].getName().endsWith(".lsm") || automaticallyProcessedFiles[currentFile].getName().endsWith(".LSM") || automaticallyProcessedFiles[currentFile].getName().endsWith(".czi") || automaticallyProcessedFiles[currentFile].getName().endsWith(".CZI"))) {
-            processFile(++currentlyProcessedFile);
-            return;
+        log("Current file is: " + file.getName());
+        currentlyProcessedFileName = automaticallyProcessedDirectory.getRelativeName(file);
+        FretParameters parameters = getPreprocessingParameters();
+        FilePrefetcher.PreparedFile prepared = parameters != null ? filePrefetcher.take(file, parameters) : null;
+        if (prepared != null && prepared.getError() == null) {
+            showPreparedFile(prepared);
+        } else {
+            (new Opener()).open(file.getAbsolutePath());
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "split"));
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAcceptorAfter"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorAfter"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAcceptorBefore"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorBefore"));
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "registerImages"));
+            smoothChannels(getProcessedChannels());
+            donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6));
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "copyRoi"));
+            subtractBackground(getProcessedChannels());
+            donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6));
+            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "copyRoi"));
+            donorBefore.getProcessor().setValue(0);
+            donorBefore.getProcessor().fill();
+            donorAfter.getProcessor().setValue(0);
+            donorAfter.getProcessor().fill();
+            if (partialBlCorrMenuItem.isSelected()) {
+                acceptorBefore.getProcessor().setValue(0);
+                acceptorBefore.getProcessor().fill();
+                acceptorAfter.getProcessor().setValue(0);
+                acceptorAfter.getProcessor().fill();
+            } else if (useAcceptorAsMask.isSelected()) {
+                acceptorBefore.getProcessor().setValue(0);
+                acceptorBefore.getProcessor().fill();
+            }
+            donorBefore.killRoi();
+            donorAfter.killRoi();
+            if (partialBlCorrMenuItem.isSelected()) {
+                acceptorBefore.killRoi();
+                acceptorAfter.killRoi();
+            } else if (useAcceptorAsMask.isSelected()) {
+                acceptorBefore.killRoi();
+            }
+            FretParameters thresholdParameters = getThresholdParameters(new FretParameters());
+            if (thresholdParameters != null) {
+                autoThreshold(thresholdParameters, getProcessedChannels());
+            }
         }
-        log("Current file is: " + automaticallyProcessedFiles[currentFile].getName());
-        currentlyProcessedFileName = automaticallyProcessedFiles[currentFile].getName();
-        (new Opener()).open(automaticallyProcessedFiles[currentFile].getAbsolutePath());
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "split"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAcceptorAfter"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorAfter"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAcceptorBefore"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorBefore"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "registerImages"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothDBefore"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothDAfter"));
-        if (partialBlCorrMenuItem.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothABefore"));
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothAAfter"));
-        } else if (useAcceptorAsMask.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothABefore"));
+        nextProcessedFile = takeNextFile();
+        if (parameters != null && nextProcessedFile != null) {
+            filePrefetcher.prefetch(nextProcessedFile, parameters);
         }
-        donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "copyRoi"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractDonorBefore"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractDonorAfter"));
-        if (partialBlCorrMenuItem.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractAcceptorBefore"));
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractAcceptorAfter"));
-        } else if (useAcceptorAsMask.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractAcceptorBefore"));
-        }
-        donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "copyRoi"));
-        donorBefore.getProcessor().setValue(0);
-        donorBefore.getProcessor().fill();
-        donorAfter.getProcessor().setValue(0);
-        donorAfter.getProcessor().fill();
-        if (partialBlCorrMenuItem.isSelected()) {
-            acceptorBefore.getProcessor().setValue(0);
-            acceptorBefore.getProcessor().fill();
-            acceptorAfter.getProcessor().setValue(0);
-            acceptorAfter.getProcessor().fill();
-        } else if (useAcceptorAsMask.isSelected()) {
-            acceptorBefore.getProcessor().setValue(0);
-            acceptorBefore.getProcessor().fill();
+    }
+
+    /**
+     * Returns the next file of semi-automatic mode, or null if there are no
+     * more files or the directory can not be read.
+     */
+    private File takeNextFile() {
+        try {
+            return automaticallyProcessedFiles.hasNext() ? automaticallyProcessedFiles.next() : null;
+        } catch (UncheckedIOException ex) {
+            logError(ex.getMessage());
+            return null;
         }
-        donorBefore.killRoi();
-        donorAfter.killRoi();
-        if (partialBlCorrMenuItem.isSelected()) {
-            acceptorBefore.killRoi();
-            acceptorAfter.killRoi();
-        } else if (useAcceptorAsMask.isSelected()) {
-            acceptorBefore.killRoi();
+    }
+
+    /**
+     * Returns the settings of the preprocessing in semi-automatic mode, or
+     * null if one of them is invalid.
+     */
+    private FretParameters getPreprocessingParameters() {
+        FretParameters parameters = new FretParameters()
+                .withPartialBleachingCorrection(partialBlCorrMenuItem.isSelected(), 0)
+                .withAcceptorAsMask(useAcceptorAsMask.isSelected())
+                .withRegistration(subPixelRegMenuItem.isSelected(), coarseToFineRegMenuItem.isSelected(), applyShiftCB.isSelected());
+        parameters = getSmoothingParameters(parameters);
+        if (parameters == null) {
+            return null;
         }
+        return getThresholdParameters(parameters);
+    }
+
+    /**
+     * Shows the channels of a file preprocessed in the background, and sets
+     * them as the donor and acceptor images, as if they were processed now.
+     */
+    private void showPreparedFile(FilePrefetcher.PreparedFile prepared) {
+        FretPipeline pipeline = prepared.getPipeline();
+        String time = dateTimeFormat.format(OffsetDateTime.now());
+        acceptorAfter = showChannel(pipeline, FretPipeline.ACCEPTOR_AFTER, "Acceptor after bleaching - " + time);
+        donorAfter = showChannel(pipeline, FretPipeline.DONOR_AFTER, "Donor after bleaching - " + time);
+        acceptorBefore = showChannel(pipeline, FretPipeline.ACCEPTOR_BEFORE, "Acceptor before bleaching - " + time);
+        donorBefore = showChannel(pipeline, FretPipeline.DONOR_BEFORE, "Donor before bleaching - " + time);
+        donorBeforeSave = prepared.getSave(FretPipeline.DONOR_BEFORE);
+        donorAfterSave = prepared.getSave(FretPipeline.DONOR_AFTER);
+        acceptorBeforeSave = prepared.getSave(FretPipeline.ACCEPTOR_BEFORE);
+        acceptorAfterSave = prepared.getSave(FretPipeline.ACCEPTOR_AFTER);
+        log("Set the images of " + prepared.getFile().getName() + " (preprocessed in the background).");
+        for (JButton button : new JButton[]{setDonorBeforeButton, setDonorAfterButton, setAcceptorBeforeButton, setAcceptorAfterButton}) {
+            button.setBackground(greenColor);
+            button.setOpaque(true);
+            button.setBorderPainted(false);
+        }
+        logRegistration(pipeline, prepared.getShift());
+        int[] channels = pipeline.getProcessedChannels();
+        for (int channel : channels) {
+            markSmoothed(channel, pipeline.getParameters().getSigma(channel));
+        }
+        for (int i = 0; i < channels.length; i++) {
+            markBackgroundSubtracted(channels[i], prepared.getBackgroundAverages()[i]);
+        }
+        for (int i = 0; i < channels.length; i++) {
+            int method = pipeline.getParameters().getThresholdMethod(channels[i]);
+            if (method != AutoThreshold.NONE) {
+                markThresholded(channels[i], method, prepared.getThresholds()[i]);
+            }
+        }
+    }
+
+    private ImagePlus showChannel(FretPipeline pipeline, int channel, String title) {
+        ImageProcessor ip = pipeline.getChannel(channel);
+        ip.resetMinAndMax();
+        ImagePlus image = new ImagePlus(title, ip);
+        image.show();
+        return image;
+    }
+
+    /**
+     * Processes the files of the scanner with a BatchProcessor, on the
+     * calling thread, and adds their results to the results table in file
+     * order, with their paths relative to the selected directory. The
+     * journal and the cache may be null.
+     */
+    private void processBatch(FretParameters parameters, DirectoryScanner scanner, BatchJournal journal, ResultCache cache) {
+        long start = System.currentTimeMillis();
+        List<BatchProcessor.FileResult> results;
+        try {
+            results = new BatchProcessor(parameters, fretEngine.getThreads(), journal, cache).process(scanner.iterator(), (result, finished, total) -> IJ.showProgress(finished, total));
+        } catch (RuntimeException ex) {
+            SwingUtilities.invokeLater(() -> {
+                logError("Batch processing has been stopped.");
+                logException(ex.getMessage(), ex);
+                setBatchMenuItemsEnabled(true);
+            });
+            return;
+        }
+        long duration = System.currentTimeMillis() - start;
+        SwingUtilities.invokeLater(() -> {
+            if (results.isEmpty()) {
+                logError("There are no LSM or CZI files in the selected directory.");
+                setBatchMenuItemsEnabled(true);
+                return;
+            }
+            analyzer = new Analyzer();
+            resultsTable = Analyzer.getResultsTable();
+            resultsTable.setPrecision(3);
+            int fromJournal = 0;
+            int fromCache = 0;
+            for (BatchProcessor.FileResult result : results) {
+                if (result.getError() != null) {
+                    logError(scanner.getRelativeName(result.getFile()) + ": " + result.getError());
+                } else {
+                    addResultsRow(scanner.getRelativeName(result.getFile()), result.getValues());
+                }
+                if (result.getSource() == BatchProcessor.FROM_JOURNAL) {
+                    fromJournal++;
+                } else if (result.getSource() == BatchProcessor.FROM_CACHE) {
+                    fromCache++;
+                }
+            }
+            analyzer.displayResults();
+            analyzer.updateHeadings();
+            if (fromJournal > 0) {
+                log(fromJournal + " files had been finished earlier, their results are taken from the batch journal.");
+            }
+            if (fromCache > 0) {
+                log(fromCache + " files had been processed earlier with the same parameters, their results are taken from the result cache.");
+            }
+            if (cache != null && cache.getWriteError() != null) {
+                logWarning("Could not write the result cache: " + cache.getWriteError().getMessage());
+            }
+            if (journal != null && journal.getWriteError() != null) {
+                logWarning("Could not write the batch journal: " + journal.getWriteError().getMessage());
+            }
+            log("Batch processing of " + results.size() + " files has been finished in " + new DecimalFormat("#0.0").format(duration / 1000.0) + " s.");
+            setBatchMenuItemsEnabled(true);
+        });
+    }
+
+    /**
+     * Enables or disables the menu items which must not be used while a batch
+     * is running: starting another batch and changing its settings, the
+     * result cache or the processing threads.
+     */
+    private void setBatchMenuItemsEnabled(boolean enabled) {
+        batchMenuItem.setEnabled(enabled);
+        subdirectoriesMenuItem.setEnabled(enabled);
+        resultCacheMenuItem.setEnabled(enabled);
+        clearCacheMenuItem.setEnabled(enabled);
+        threadsMenuItem.setEnabled(enabled);
     }
 
     private void resetAll() {
@@ -2655,8 +2772,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         resetAllButtonColors();
 
         nextButton.setVisible(false);
-        currentlyProcessedFile = 0;
         automaticallyProcessedFiles = null;
+        nextProcessedFile = null;
         currentlyProcessedFileName = null;
     }
 
@@ -2774,6 +2891,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 shiftDialog.setVisible(false);
                 shiftDialog.dispose();
             }
+            if (autoThresholdDialog != null) {
+                autoThresholdDialog.setVisible(false);
+                autoThresholdDialog.dispose();
+            }
             if (donorBlCorrDialog != null) {
                 donorBlCorrDialog.setVisible(false);
                 donorBlCorrDialog.dispose();
@@ -2790,6 +2911,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 calculateImgRatioDialog.setVisible(false);
                 calculateImgRatioDialog.dispose();
             }
+            filePrefetcher.shutdown();
+            fretEngine.shutdown();
+            ImagePlus.removeImageListener(this);
+            imageRegistration.clearCache();
             setVisible(false);
             dispose();
         }
@@ -2824,6 +2949,42 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     public void windowOpened(WindowEvent e) {
     }
 
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus imp) {
+    }
+
+    /**
+     * Drops the cached registration transform of an image modified outside
+     * the plugin, e.g. by an ImageJ command.
+     */
+    @Override
+    public void imageUpdated(ImagePlus imp) {
+        ImageProcessor ip = imp.getProcessor();
+        if (ip != null) {
+            imageRegistration.invalidate(ip);
+        }
+    }
+
+    public ParallelFretEngine getFretEngine() {
+        return fretEngine;
+    }
+
+    public ImageRegistration getImageRegistration() {
+        return imageRegistration;
+    }
+
+    public boolean isSubPixelRegistration() {
+        return subPixelRegMenuItem.isSelected();
+    }
+
+    public boolean isCoarseToFineRegistration() {
+        return coarseToFineRegMenuItem.isSelected();
+    }
+
     public ImagePlus getDonorBefore() {
         return donorBefore;
     }
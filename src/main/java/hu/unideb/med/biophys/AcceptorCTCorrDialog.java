@@ -304,28 +304,7 @@ public class AcceptorCTCorrDialog extends JDialog implements ActionListener {
                         accBlWindow.logError("No ROI is defined for donor before bleaching. (ct. corr.)");
                         return;
                     }
-                    ImageProcessor ipDB = donorCBefore.getProcessor();
-                    int width = donorCBefore.getWidth();
-                    int height = donorCBefore.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorCBefore.getRoi().contains(i, j)) {
-                                sum += ipDB.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgDB = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipDB.getPixelValue(x, y);
-                            value = value - backgroundAvgDB;
-                            ipDB.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgDB = new BackgroundSubtractor(accBlWindow.getFretEngine(), false).subtract(donorCBefore.getRoi(), donorCBefore.getProcessor())[0];
                     donorCBefore.updateAndDraw();
                     donorCBefore.killRoi();
                     accBlWindow.log("Subtracted background (" + backgroundAvgDB + ") of donor before bleaching. (ct. corr.)");
@@ -342,28 +321,7 @@ public class AcceptorCTCorrDialog extends JDialog implements ActionListener {
                         accBlWindow.logError("No ROI is defined for acceptor before bleaching. (ct. corr.)");
                         return;
                     }
-                    ImageProcessor ipAB = acceptorCBefore.getProcessor();
-                    int width = acceptorCBefore.getWidth();
-                    int height = acceptorCBefore.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (acceptorCBefore.getRoi().contains(i, j)) {
-                                sum += ipAB.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgDA = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipAB.getPixelValue(x, y);
-                            value = value - backgroundAvgDA;
-                            ipAB.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgDA = new BackgroundSubtractor(accBlWindow.getFretEngine(), false).subtract(acceptorCBefore.getRoi(), acceptorCBefore.getProcessor())[0];
                     acceptorCBefore.updateAndDraw();
                     acceptorCBefore.killRoi();
                     accBlWindow.log("Subtracted background (" + backgroundAvgDA + ") of acceptor before bleaching. (ct. corr.)");
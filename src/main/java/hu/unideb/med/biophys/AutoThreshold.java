@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.process.AutoThresholder;
+import java.util.Arrays;
+
+/**
+ * Automatic thresholding of 32-bit channel images: the pixels below the
+ * threshold are set to NaN, like with the "Set to NaN" option of ImageJ's
+ * threshold tool. The Otsu, Li and Triangle levels are those of ImageJ's
+ * AutoThresholder for a 256-bin histogram of the not NaN pixels between
+ * their minimum and maximum, so these thresholds fall on bin edges. The
+ * percentile threshold is the exact pixel value of that rank.
+ *
+ * The histogram is built on row bands of a ParallelFretEngine, each band
+ * counting into its own array.
+ */
+public class AutoThreshold {
+
+    public static final int NONE = 0;
+    public static final int OTSU = 1;
+    public static final int LI = 2;
+    public static final int TRIANGLE = 3;
+    public static final int PERCENTILE = 4;
+    public static final String[] METHOD_NAMES = {"None", "Otsu", "Li", "Triangle", "Percentile"};
+    private static final int BINS = 256;
+    /**
+     * The number of values which are selected directly when the rank of
+     * the percentile threshold is searched, and the number of histogram
+     * passes after which they are selected, however many there are.
+     */
+    private static final int SELECT_BUFFER = 1 << 14;
+    private static final int SELECT_PASSES = 4;
+    private final ParallelFretEngine engine;
+
+    public AutoThreshold(ParallelFretEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets the pixels below the threshold of the method to NaN, and returns
+     * the threshold. With the PERCENTILE method, the given percentage of the
+     * not NaN pixels (rounded up) is set to NaN, less if several pixels have
+     * the value of the threshold, as all of them are kept; the pixels of the
+     * maximum are always kept. Nothing is changed, and NaN is returned,
+     * if the method is NONE or the image has less than two different values.
+     */
+    public float apply(final float[] pixels, final int width, int height, int method, double percentile) {
+        final float threshold = findThreshold(pixels, width, height, method, percentile);
+        if (!Float.isNaN(threshold)) {
+            engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+                for (int i = fromRow * width; i < toRow * width; i++) {
+                    if (pixels[i] < threshold) {
+                        pixels[i] = Float.NaN;
+                    }
+                }
+            });
+        }
+        return threshold;
+    }
+
+    /**
+     * Returns the threshold of the method, or NaN if the method is NONE or
+     * the image has less than two different values.
+     */
+    public float findThreshold(float[] pixels, int width, int height, int method, double percentile) {
+        if (method == NONE) {
+            return Float.NaN;
+        }
+        float[] range = findRange(pixels, width, height);
+        float min = range[0];
+        float max = range[1];
+        if (!(max > min)) {
+            return Float.NaN;
+        }
+        int[] histogram = buildHistogram(pixels, width, height, min, max);
+        if (method == PERCENTILE) {
+            return percentile(pixels, histogram, min, max, percentile);
+        }
+        int level;
+        switch (method) {
+            case OTSU:
+                level = new AutoThresholder().getThreshold(AutoThresholder.Method.Otsu, histogram);
+                break;
+            case LI:
+                level = new AutoThresholder().getThreshold(AutoThresholder.Method.Li, histogram);
+                break;
+            case TRIANGLE:
+                level = new AutoThresholder().getThreshold(AutoThresholder.Method.Triangle, histogram);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown threshold method: " + method);
+        }
+        // the pixels in bins above level are kept
+        return (float) (min + (level + 1) * ((double) max - min) / BINS);
+    }
+
+    private float[] findRange(final float[] pixels, final int width, int height) {
+        final float[] range = {Float.MAX_VALUE, -Float.MAX_VALUE};
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                float value = pixels[i];
+                // NaN and infinite pixels are skipped
+                if (value >= -Float.MAX_VALUE && value <= Float.MAX_VALUE) {
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+            synchronized (range) {
+                range[0] = Math.min(range[0], min);
+                range[1] = Math.max(range[1], max);
+            }
+        });
+        return range;
+    }
+
+    private int[] buildHistogram(final float[] pixels, final int width, int height, final float min, final float max) {
+        final int[] histogram = new int[BINS];
+        final double scale = BINS / ((double) max - min);
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            int[] bandHistogram = new int[BINS];
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                float value = pixels[i];
+                if (value >= min && value <= max) {
+                    int bin = (int) ((value - min) * scale);
+                    bandHistogram[bin < BINS ? bin : BINS - 1]++;
+                }
+            }
+            synchronized (histogram) {
+                for (int bin = 0; bin < BINS; bin++) {
+                    histogram[bin] += bandHistogram[bin];
+                }
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Returns the value which has the given percentage of the not NaN pixels
+     * (rounded up) below it: the pixel of that rank, at most the maximum.
+     */
+    private static float percentile(float[] pixels, int[] histogram, float min, float max, double percentile) {
+        int total = 0;
+        for (int i = 0; i < BINS; i++) {
+            total += histogram[i];
+        }
+        int rank = (int) Math.min(total - 1, Math.ceil(total * percentile / 100));
+        if (rank <= 0) {
+            return min;
+        }
+        return findRank(pixels, min, max, rank);
+    }
+
+    /**
+     * Returns the k-th smallest (from 0) of the pixels between low and high.
+     * Like the median of ChannelStatistics, it is found without copying the
+     * pixels: the range is narrowed to the histogram bin holding the rank,
+     * bounded by the values actually in it, until the bin holds few enough
+     * values to be collected and selected directly.
+     */
+    private static float findRank(float[] pixels, float low, float high, int k) {
+        int below = 0;
+        int[] counts = new int[BINS];
+        float[] binMin = new float[BINS];
+        float[] binMax = new float[BINS];
+        for (int pass = 0;; pass++) {
+            if (low == high) {
+                return low;
+            }
+            double scale = BINS / ((double) high - low);
+            Arrays.fill(counts, 0);
+            Arrays.fill(binMin, Float.POSITIVE_INFINITY);
+            Arrays.fill(binMax, Float.NEGATIVE_INFINITY);
+            for (float v : pixels) {
+                if (v >= low && v <= high) {
+                    int bin = Math.min((int) ((v - (double) low) * scale), BINS - 1);
+                    counts[bin]++;
+                    if (v < binMin[bin]) {
+                        binMin[bin] = v;
+                    }
+                    if (v > binMax[bin]) {
+                        binMax[bin] = v;
+                    }
+                }
+            }
+            int bin = 0;
+            while (below + counts[bin] <= k) {
+                below += counts[bin];
+                bin++;
+            }
+            low = binMin[bin];
+            high = binMax[bin];
+            if (low != high && (counts[bin] <= SELECT_BUFFER || pass + 1 == SELECT_PASSES)) {
+                float[] values = new float[counts[bin]];
+                int n = 0;
+                for (float v : pixels) {
+                    if (v >= low && v <= high) {
+                        values[n++] = v;
+                    }
+                }
+                return ChannelStatistics.select(values, 0, n, k - below);
+            }
+        }
+    }
+}
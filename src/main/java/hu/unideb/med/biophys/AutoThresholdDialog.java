@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.IJ;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+/**
+ * Dialog for setting the automatic threshold method of each channel. The
+ * settings are also used by semi-automatic and batch processing.
+ */
+public class AutoThresholdDialog extends JDialog implements ActionListener {
+
+    private static final String[] CHANNEL_LABELS = {"Donor before:", "Donor after:", "Acceptor before:", "Acceptor after:"};
+    private AccPbFRET_Plugin accBlWindow;
+    JPanel panel;
+    List<JComboBox<String>> methodBoxes;
+    JTextField percentileField;
+    JButton applyButton = new JButton("Apply");
+    JButton cancelButton = new JButton("Close");
+
+    public AutoThresholdDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("Automatic Threshold");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        getRootPane().setDefaultButton(applyButton);
+        if (IJ.isMacOSX()) {
+            setSize(300, 230);
+        } else {
+            setSize(260, 210);
+        }
+        pack();
+        setLocationRelativeTo(null);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2, 2, 2, 2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = 1;
+        methodBoxes = new ArrayList<>();
+        for (int i = 0; i < CHANNEL_LABELS.length; i++) {
+            gc.gridx = 0;
+            gc.gridy = i;
+            panel.add(new JLabel(CHANNEL_LABELS[i]), gc);
+            gc.gridx = 1;
+            JComboBox<String> methodBox = new JComboBox<>(AutoThreshold.METHOD_NAMES);
+            methodBoxes.add(methodBox);
+            panel.add(methodBox, gc);
+        }
+        gc.gridx = 0;
+        gc.gridy = 4;
+        panel.add(new JLabel("Percentile (%):"), gc);
+        gc.gridx = 1;
+        percentileField = new JTextField("50", 4);
+        percentileField.setHorizontalAlignment(JTextField.RIGHT);
+        panel.add(percentileField, gc);
+        gc.gridx = 0;
+        gc.gridy = 5;
+        panel.add(applyButton, gc);
+        applyButton.addActionListener(this);
+        applyButton.setActionCommand("apply");
+        gc.gridx = 1;
+        panel.add(cancelButton, gc);
+        cancelButton.addActionListener(this);
+        cancelButton.setActionCommand("cancel");
+
+        getContentPane().add(panel);
+    }
+
+    /**
+     * Returns the parameters with the threshold methods of the dialog, or
+     * null if the percentile is needed but not valid.
+     */
+    public FretParameters getParameters(FretParameters parameters) {
+        int[] methods = new int[methodBoxes.size()];
+        boolean percentileNeeded = false;
+        for (int i = 0; i < methodBoxes.size(); i++) {
+            methods[i] = methodBoxes.get(i).getSelectedIndex();
+            percentileNeeded |= methods[i] == AutoThreshold.PERCENTILE;
+        }
+        double percentile = 50;
+        if (percentileNeeded) {
+            try {
+                percentile = Double.parseDouble(percentileField.getText().trim());
+            } catch (NumberFormatException ex) {
+                percentile = Double.NaN;
+            }
+            if (!(percentile >= 0 && percentile <= 100)) {
+                accBlWindow.logError("The percentile has to be between 0 and 100.");
+                return null;
+            }
+        }
+        return parameters.withThresholds(methods[0], methods[1], methods[2], methods[3], percentile);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        try {
+            switch (e.getActionCommand()) {
+                case "cancel":
+                    setVisible(false);
+                    break;
+                case "apply":
+                    accBlWindow.applyAutoThresholds();
+                    break;
+                default:
+                    break;
+            }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
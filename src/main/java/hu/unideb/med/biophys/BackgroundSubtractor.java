@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * Subtracts the average background, measured in a ROI, from 32-bit channel
+ * images, working directly on their pixel arrays.
+ */
+public class BackgroundSubtractor {
+
+    private final ParallelFretEngine engine;
+    private final boolean clampToZero;
+
+    /**
+     * If clampToZero is true, negative pixels are set to 0 after the
+     * subtraction.
+     */
+    public BackgroundSubtractor(ParallelFretEngine engine, boolean clampToZero) {
+        this.engine = engine;
+        this.clampToZero = clampToZero;
+    }
+
+    /**
+     * Subtracts the average of the pixels inside roi from every pixel of each
+     * processor (measured separately for each processor), and returns the
+     * subtracted averages. All processors must have the size of the first one.
+     */
+    public float[] subtract(Roi roi, ImageProcessor... processors) {
+        final int width = processors[0].getWidth();
+        int height = processors[0].getHeight();
+        RoiMask mask = RoiMask.get(roi, width, height);
+        final float[][] pixels = new float[processors.length][];
+        final float[] averages = new float[processors.length];
+        for (int c = 0; c < processors.length; c++) {
+            pixels[c] = (float[]) processors[c].getPixels();
+            averages[c] = (float) (mask.sum(pixels[c]) / mask.getPixelCount());
+        }
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            for (int c = 0; c < pixels.length; c++) {
+                subtract(pixels[c], averages[c], fromRow * width, toRow * width);
+            }
+        });
+        return averages;
+    }
+
+    private void subtract(float[] pixels, float average, int from, int to) {
+        if (clampToZero) {
+            for (int i = from; i < to; i++) {
+                float value = pixels[i] - average;
+                pixels[i] = value < 0 ? 0 : value;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                pixels[i] = pixels[i] - average;
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only record of the files finished by a batch, kept in a text
+ * file in the processed directory, so that an interrupted batch can be
+ * resumed. Every line holds the path of a file relative to the directory,
+ * its length and modification time, the parameters and the values of its
+ * results row, separated by tabs. Lines starting with # are comments.
+ *
+ * Every line is forced to the disk when it is written. A line cut off by a
+ * crash has no line end and is ignored when the journal is read, so at most
+ * the file in flight is lost.
+ */
+public class BatchJournal {
+
+    public static final String FILE_NAME = "AccPbFRET_batch_journal.txt";
+    private static final int FIXED_FIELDS = 4;
+    private final Path directory;
+    private final Path path;
+    private final Map<String, String[]> entries = new HashMap<>();
+    private boolean needsHeader;
+    private boolean needsLineEnd;
+    private IOException writeError;
+
+    private BatchJournal(File directory) {
+        this.directory = directory.toPath();
+        this.path = this.directory.resolve(FILE_NAME);
+    }
+
+    /**
+     * Opens the journal of the directory, reading the files recorded in it
+     * earlier. The journal file is created with the first recorded file.
+     * Throws UncheckedIOException if the journal can not be read.
+     */
+    public static BatchJournal open(File directory) {
+        BatchJournal journal = new BatchJournal(directory);
+        journal.read();
+        return journal;
+    }
+
+    private void read() {
+        if (!Files.exists(path)) {
+            needsHeader = true;
+            return;
+        }
+        String text;
+        try {
+            text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read the batch journal " + path + ".", ex);
+        }
+        needsLineEnd = !text.isEmpty() && !text.endsWith("\n");
+        String[] lines = text.split("\n", -1);
+        // the last line is either empty or was not finished
+        for (int i = 0; i < lines.length - 1; i++) {
+            String line = lines[i].endsWith("\r") ? lines[i].substring(0, lines[i].length() - 1) : lines[i];
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length == FIXED_FIELDS + BatchProcessor.RESULT_HEADINGS.length) {
+                entries.put(unescape(fields[0]), fields);
+            }
+        }
+    }
+
+    public File getFile() {
+        return path.toFile();
+    }
+
+    /**
+     * Returns the number of files recorded in the journal, with any
+     * parameters.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the results row recorded for the file, or null if the file
+     * has not been recorded with these parameters, or it has been modified
+     * since.
+     */
+    public synchronized double[] getValues(File file, FretParameters parameters) {
+        String[] fields = entries.get(getName(file));
+        if (fields == null || !fields[1].equals(Long.toString(file.length()))
+                || !fields[2].equals(Long.toString(file.lastModified())) || !fields[3].equals(parameters.toString())) {
+            return null;
+        }
+        double[] values = new double[fields.length - FIXED_FIELDS];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.parseDouble(fields[FIXED_FIELDS + i]);
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Appends the results row of a finished file to the journal. The first
+     * write error is kept (see getWriteError), and nothing is written after
+     * it.
+     */
+    public synchronized void record(File file, FretParameters parameters, double[] values) {
+        if (writeError != null) {
+            return;
+        }
+        String[] fields = new String[FIXED_FIELDS + values.length];
+        fields[0] = escape(getName(file));
+        fields[1] = Long.toString(file.length());
+        fields[2] = Long.toString(file.lastModified());
+        fields[3] = parameters.toString();
+        for (int i = 0; i < values.length; i++) {
+            fields[FIXED_FIELDS + i] = Double.toString(values[i]);
+        }
+        StringBuilder text = new StringBuilder();
+        if (needsHeader) {
+            text.append("# AccPbFRET batch journal\n# File\tLength\tLast modified\tParameters\t")
+                    .append(String.join("\t", BatchProcessor.RESULT_HEADINGS)).append('\n');
+        } else if (needsLineEnd) {
+            text.append('\n');
+        }
+        text.append(String.join("\t", fields)).append('\n');
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            writeError = ex;
+            return;
+        }
+        needsHeader = false;
+        needsLineEnd = false;
+        entries.put(getName(file), Arrays.copyOf(fields, fields.length));
+    }
+
+    /**
+     * Returns the error which stopped writing the journal, or null.
+     */
+    public synchronized IOException getWriteError() {
+        return writeError;
+    }
+
+    private String getName(File file) {
+        return directory.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,364 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes a set of image files without user interaction, several files at
+ * the same time on a fixed number of worker threads. Every worker processes
+ * its file on its own thread, with a single-threaded engine, so the workers
+ * do not compete for the threads of a shared pool. ImageJ's GaussianBlur
+ * starts Prefs.getThreads() threads of its own, so only one worker smooths
+ * its images at a time. The number of files open at the same time is also
+ * limited by the free memory. Every file is processed
+ * like in semi-automatic mode: the image is split, registered, blurred, the
+ * background measured in the upper left corner (1/6 x 1/6 of the image) is
+ * subtracted, the automatic thresholds of the parameters are applied, and
+ * the transfer image is calculated and measured.
+ *
+ * The files are started in order of decreasing size, within windows of the
+ * enumerated files, so that the large ones do not delay the end of the
+ * batch, but the results are returned in the order of the given files.
+ *
+ * With a BatchJournal the finished files are recorded, and a batch started
+ * again after an interruption skips them. With a ResultCache the results
+ * of files processed earlier with the same parameters are reused, wherever
+ * the files are.
+ */
+public class BatchProcessor {
+
+    /**
+     * The number of files per worker thread taken from the enumeration at a
+     * time.
+     */
+    private static final int FILES_PER_WORKER = 16;
+    /**
+     * The estimated memory needed to process a file, per byte of the file:
+     * the opened images, their 32-bit copies, the transfer image and the
+     * registration and smoothing buffers.
+     */
+    private static final int MEMORY_PER_FILE_BYTE = 12;
+    /**
+     * The sources of a FileResult.
+     */
+    public static final int PROCESSED = 0;
+    public static final int FROM_JOURNAL = 1;
+    public static final int FROM_CACHE = 2;
+    /**
+     * The headings of the values of a results row, see getResultValues.
+     */
+    public static final String[] RESULT_HEADINGS = {"Pixels", "Not NaN p.", "Mean", "Median", "Std. dev.", "Min", "Max",
+        "Min (DB)", "Max (DB)", "Mean (DB)", "Min (DA)", "Max (DA)", "Mean (DA)", "Min (AB)", "Max (AB)", "Mean (AB)"};
+    private final FretParameters parameters;
+    private final ParallelFretEngine engine = new ParallelFretEngine(1);
+    private final Object smoothingLock = new Object();
+    private final int workers;
+    private final BatchJournal journal;
+    private final ResultCache cache;
+
+    /**
+     * Receives the results of the files as they are finished, on the worker
+     * threads, or on the calling thread for the files taken from the journal.
+     */
+    public interface Progress {
+
+        void fileFinished(FileResult result, int finished, int total);
+    }
+
+    /**
+     * The results row of a file (see getResultValues), or the error which
+     * stopped its processing.
+     */
+    public static class FileResult {
+
+        private final File file;
+        private final double[] values;
+        private final String error;
+        private final int source;
+
+        FileResult(File file, double[] values, String error, int source) {
+            this.file = file;
+            this.values = values;
+            this.error = error;
+            this.source = source;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public double[] getValues() {
+            return values;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Returns PROCESSED if the file was processed now, FROM_JOURNAL if
+         * it was finished by an earlier run of the batch, or FROM_CACHE if
+         * its results were found in the result cache.
+         */
+        public int getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * The files are processed on the given number of worker threads.
+     */
+    public BatchProcessor(FretParameters parameters, int workers) {
+        this(parameters, workers, null, null);
+    }
+
+    /**
+     * The files recorded in the journal with the same parameters are not
+     * processed again, their results are taken from the journal, and the
+     * other files are recorded in it as they are finished. The files not in
+     * the journal are looked up in the cache by their content, and the
+     * results of the processed files are stored in it. The journal and the
+     * cache may be null.
+     */
+    public BatchProcessor(FretParameters parameters, int workers, BatchJournal journal, ResultCache cache) {
+        this.parameters = parameters;
+        this.workers = Math.max(1, workers);
+        this.journal = journal;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the values of a results row from the statistics of the
+     * transfer image and the channels, as returned by FretPipeline.measure.
+     * The acceptor before values are 0 if it was not measured.
+     */
+    public static double[] getResultValues(ChannelStatistics[] stats) {
+        double[] values = new double[RESULT_HEADINGS.length];
+        values[0] = stats[0].getRoiPixelCount();
+        values[1] = stats[0].getNotNaNCount();
+        values[2] = (float) stats[0].getMean();
+        values[3] = (float) stats[0].getMedian();
+        values[4] = (float) stats[0].getStdDev();
+        values[5] = (float) stats[0].getMin();
+        values[6] = (float) stats[0].getMax();
+        for (int c = 1; c < Math.min(stats.length, 4); c++) {
+            values[4 + 3 * c] = (float) stats[c].getMin();
+            values[5 + 3 * c] = (float) stats[c].getMax();
+            values[6 + 3 * c] = (float) stats[c].getMean();
+        }
+        return values;
+    }
+
+    /**
+     * Processes the files and returns their results in the same order. The
+     * progress may be null.
+     */
+    public List<FileResult> process(List<File> files, Progress progress) {
+        return process(files.iterator(), progress);
+    }
+
+    /**
+     * Processes the files of the enumeration, e.g. of a DirectoryScanner, and
+     * returns their results in the same order. The files are taken lazily,
+     * in windows of FILES_PER_WORKER files per worker, and only the next
+     * window is enumerated while the current one is processed. The total
+     * passed to the progress is the number of files enumerated so far. The
+     * progress may be null.
+     *
+     * A worker only opens its file when the estimated memory of the files
+     * being processed fits in half of the memory free at the start; one file
+     * is always processed, whatever its size.
+     */
+    public List<FileResult> process(Iterator<File> files, final Progress progress) {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        Runtime runtime = Runtime.getRuntime();
+        final MemoryBudget memory = new MemoryBudget((runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 2);
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        List<FileResult> results = new ArrayList<>();
+        try {
+            List<Future<FileResult>> current = submitWindow(executor, files, memory, finished, total, progress);
+            while (!current.isEmpty()) {
+                List<Future<FileResult>> next = submitWindow(executor, files, memory, finished, total, progress);
+                for (Future<FileResult> future : current) {
+                    results.add(future.get());
+                }
+                current = next;
+            }
+            return results;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the batch processing threads.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Takes the next window of files and submits them in order of decreasing
+     * size. The futures are returned in the order of the files.
+     */
+    private List<Future<FileResult>> submitWindow(ExecutorService executor, Iterator<File> files, final MemoryBudget memory, final AtomicInteger finished, final AtomicInteger total, final Progress progress) {
+        final List<File> window = new ArrayList<>();
+        while (window.size() < workers * FILES_PER_WORKER && files.hasNext()) {
+            window.add(files.next());
+        }
+        total.addAndGet(window.size());
+        List<Integer> order = new ArrayList<>();
+        List<Future<FileResult>> futures = new ArrayList<>();
+        for (int i = 0; i < window.size(); i++) {
+            order.add(i);
+            futures.add(null);
+        }
+        order.sort(Comparator.comparingLong((Integer i) -> window.get(i).length()).reversed());
+        for (final int i : order) {
+            double[] values = journal != null ? journal.getValues(window.get(i), parameters) : null;
+            if (values != null) {
+                FileResult result = new FileResult(window.get(i), values, null, FROM_JOURNAL);
+                if (progress != null) {
+                    progress.fileFinished(result, finished.incrementAndGet(), total.get());
+                }
+                futures.set(i, CompletableFuture.completedFuture(result));
+                continue;
+            }
+            futures.set(i, executor.submit(() -> {
+                long needed = window.get(i).length() * MEMORY_PER_FILE_BYTE;
+                memory.acquire(needed);
+                FileResult result;
+                try {
+                    result = processCached(window.get(i));
+                } finally {
+                    memory.release(needed);
+                }
+                if (journal != null && result.getError() == null) {
+                    journal.record(result.getFile(), parameters, result.getValues());
+                }
+                if (progress != null) {
+                    progress.fileFinished(result, finished.incrementAndGet(), total.get());
+                }
+                return result;
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Returns the results of the file from the cache, or processes it and
+     * stores its results in the cache. A file which can not be hashed is
+     * processed without the cache.
+     */
+    private FileResult processCached(File file) {
+        if (cache == null) {
+            return processFile(file);
+        }
+        String key;
+        try {
+            key = cache.getKey(file, parameters);
+        } catch (UncheckedIOException ex) {
+            return processFile(file);
+        }
+        double[] values = cache.get(key);
+        if (values != null) {
+            return new FileResult(file, values, null, FROM_CACHE);
+        }
+        FileResult result = processFile(file);
+        if (result.getError() == null) {
+            cache.put(key, result.getValues());
+        }
+        return result;
+    }
+
+    /**
+     * Processes a single file. The errors of the file are returned in its
+     * result, also when the memory runs out: the estimate of the memory
+     * budget may be too low for a compressed file.
+     */
+    public FileResult processFile(File file) {
+        try {
+            FretPipeline pipeline = FretPipeline.open(file, parameters, engine);
+            pipeline.register();
+            synchronized (smoothingLock) {
+                pipeline.smooth();
+            }
+            ImageProcessor donorBefore = pipeline.getChannel(FretPipeline.DONOR_BEFORE);
+            Roi background = new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6);
+            pipeline.subtractBackground(background);
+            pipeline.fillBackground(background);
+            pipeline.threshold();
+            FloatProcessor transfer = pipeline.computeTransferImage();
+            return new FileResult(file, getResultValues(pipeline.measure(transfer, null)), null, PROCESSED);
+        } catch (RuntimeException ex) {
+            return new FileResult(file, null, ex.getMessage() != null ? ex.getMessage() : ex.toString(), PROCESSED);
+        } catch (OutOfMemoryError ex) {
+            return new FileResult(file, null, "Not enough memory to process the file.", PROCESSED);
+        }
+    }
+
+    /**
+     * The memory available for the files being processed, in bytes.
+     */
+    private static class MemoryBudget {
+
+        private final long available;
+        private long used;
+
+        MemoryBudget(long available) {
+            this.available = available;
+        }
+
+        /**
+         * Waits until the memory is available, or no other file is being
+         * processed.
+         */
+        synchronized void acquire(long bytes) throws InterruptedException {
+            while (used > 0 && used + bytes > available) {
+                wait();
+            }
+            used += bytes;
+        }
+
+        synchronized void release(long bytes) {
+            used -= bytes;
+            notifyAll();
+        }
+    }
+}
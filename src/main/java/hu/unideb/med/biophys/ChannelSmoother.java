@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gaussian smoothing of several channel images at once, each channel on its
+ * own thread of a ParallelFretEngine. Either ImageJ's GaussianBlur or the
+ * recursive approximation of RecursiveGaussian is used. The recursive
+ * filters would spread a NaN pixel over the whole image, so images with
+ * NaN pixels are blurred with GaussianBlur, where NaN only spreads within
+ * the kernel radius (or by normalized convolution in NaN-aware mode).
+ *
+ * In NaN-aware mode 32-bit images are smoothed by normalized convolution:
+ * the values (NaN replaced by 0) and the validity weights (1 for valid, 0
+ * for NaN pixels) are blurred separately, and every valid pixel gets the
+ * ratio of the two. NaN pixels do not spread into the valid ones and stay
+ * NaN. This costs about two blurs of the image.
+ */
+public class ChannelSmoother {
+
+    private final ParallelFretEngine engine;
+    private final boolean recursive;
+    private final boolean nanAware;
+
+    public ChannelSmoother(ParallelFretEngine engine) {
+        this(engine, false, false);
+    }
+
+    /**
+     * With recursive set, sigmas of at least 0.5 are blurred with
+     * RecursiveGaussian, whose cost does not grow with sigma, unless the image
+     * has NaN pixels. With nanAware
+     * set, 32-bit images are blurred by normalized convolution.
+     */
+    public ChannelSmoother(ParallelFretEngine engine, boolean recursive, boolean nanAware) {
+        this.engine = engine;
+        this.recursive = recursive;
+        this.nanAware = nanAware;
+    }
+
+    /**
+     * Blurs each processor in place with its own sigma (radius), in pixels,
+     * and returns when all of them are blurred.
+     */
+    public void smooth(ImageProcessor[] processors, double[] sigmas) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < processors.length; i++) {
+            final ImageProcessor ip = processors[i];
+            final double sigma = sigmas[i];
+            if (nanAware && ip instanceof FloatProcessor) {
+                tasks.add(() -> blurNanAware((FloatProcessor) ip, sigma));
+            } else {
+                tasks.add(() -> blur(ip, sigma));
+            }
+        }
+        engine.runAll(tasks);
+    }
+
+    private void blur(ImageProcessor ip, double sigma) {
+        if (recursive && sigma >= 0.5 && ip instanceof FloatProcessor && !containsNaN((float[]) ip.getPixels())) {
+            new RecursiveGaussian(sigma).blur((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), engine);
+        } else {
+            new GaussianBlur().blurGaussian(ip, sigma, sigma, 0.01);
+        }
+    }
+
+    private static boolean containsNaN(float[] pixels) {
+        for (float pixel : pixels) {
+            if (pixel != pixel) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void blurNanAware(FloatProcessor ip, double sigma) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final float[] pixels = (float[]) ip.getPixels();
+        final float[] values = new float[pixels.length];
+        final float[] weights = new float[pixels.length];
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                float value = pixels[i];
+                if (Float.isNaN(value)) {
+                    values[i] = 0;
+                    weights[i] = 0;
+                } else {
+                    values[i] = value;
+                    weights[i] = 1;
+                }
+            }
+        });
+        blur(new FloatProcessor(width, height, values), sigma);
+        blur(new FloatProcessor(width, height, weights), sigma);
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                if (!Float.isNaN(pixels[i])) {
+                    pixels[i] = values[i] / weights[i];
+                }
+            }
+        });
+    }
+}
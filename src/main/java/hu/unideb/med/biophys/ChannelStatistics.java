@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Pixel statistics of a 32-bit channel image, gathered in a single pass,
+ * and the median in a few further passes over the ROI.
+ *
+ * The values are the same as the ones of ImageStatistics for a FloatProcessor
+ * without threshold: the processor's ROI rectangle and mask are measured, and
+ * NaN and infinite pixels are skipped.
+ */
+public class ChannelStatistics {
+
+    /**
+     * The number of histogram bins of a median refinement pass, and the
+     * number of values which are selected directly instead of refining
+     * further.
+     */
+    private static final int MEDIAN_BINS = 4096;
+    private static final int MEDIAN_BUFFER = 1 << 14;
+    /**
+     * The number of refinement passes after which the candidate values are
+     * selected directly, however many there are.
+     */
+    private static final int MEDIAN_PASSES = 4;
+    private int pixelCount;
+    private double sum;
+    private double sum2;
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    private double median = Double.NaN;
+    private int roiPixelCount;
+    private int notNaNCount;
+
+    private ChannelStatistics() {
+    }
+
+    /**
+     * Measures the processors in one traversal of their rows. The median is
+     * only calculated for the processors flagged in withMedian.
+     *
+     * For the first processor, the pixels inside countRoi (or all pixels if
+     * it is null) are also counted, together with the not NaN pixels among
+     * them (values not lower than -1).
+     */
+    public static ChannelStatistics[] measure(ImageProcessor[] processors, boolean[] withMedian, Roi countRoi) {
+        int width = processors[0].getWidth();
+        int height = processors[0].getHeight();
+        int channels = processors.length;
+        ChannelStatistics[] stats = new ChannelStatistics[channels];
+        float[][] pixels = new float[channels][];
+        Rectangle[] rects = new Rectangle[channels];
+        byte[][] masks = new byte[channels][];
+        for (int c = 0; c < channels; c++) {
+            stats[c] = new ChannelStatistics();
+            pixels[c] = (float[]) processors[c].getPixels();
+            rects[c] = processors[c].getRoi();
+            masks[c] = processors[c].getMaskArray();
+        }
+        RoiMask countMask = countRoi != null ? RoiMask.get(countRoi, width, height) : null;
+        ChannelStatistics first = stats[0];
+        float[] firstPixels = pixels[0];
+        for (int y = 0; y < height; y++) {
+            for (int c = 0; c < channels; c++) {
+                Rectangle r = rects[c];
+                if (y >= r.y && y < r.y + r.height) {
+                    stats[c].add(pixels[c], masks[c], width, r, y);
+                }
+            }
+            if (countMask == null) {
+                first.countRow(firstPixels, y * width, y * width + width);
+            } else {
+                int[] spans = countMask.getSpans();
+                for (int s = countMask.getFirstSpan(y); s < countMask.getFirstSpan(y + 1); s++) {
+                    first.countRow(firstPixels, y * width + spans[2 * s], y * width + spans[2 * s + 1]);
+                }
+            }
+        }
+        for (int c = 0; c < channels; c++) {
+            if (withMedian[c] && stats[c].pixelCount > 0) {
+                stats[c].median = stats[c].findMedian(pixels[c], masks[c], width, rects[c]);
+            }
+        }
+        return stats;
+    }
+
+    private void countRow(float[] pixels, int from, int to) {
+        roiPixelCount += to - from;
+        for (int i = from; i < to; i++) {
+            if (pixels[i] >= -1) {
+                notNaNCount++;
+            }
+        }
+    }
+
+    private void add(float[] pixels, byte[] mask, int width, Rectangle r, int y) {
+        int i = y * width + r.x;
+        int mi = (y - r.y) * r.width;
+        for (int x = 0; x < r.width; x++, i++, mi++) {
+            if (mask != null && mask[mi] == 0) {
+                continue;
+            }
+            double v = pixels[i];
+            if (v >= -Float.MAX_VALUE && v <= Float.MAX_VALUE) {
+                pixelCount++;
+                sum += v;
+                sum2 += v * v;
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of measured (not NaN and finite) pixels.
+     */
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * Returns the number of pixels inside the counting ROI.
+     */
+    public int getRoiPixelCount() {
+        return roiPixelCount;
+    }
+
+    /**
+     * Returns the number of pixels inside the counting ROI which are not NaN.
+     */
+    public int getNotNaNCount() {
+        return notNaNCount;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return sum / pixelCount;
+    }
+
+    public double getStdDev() {
+        if (pixelCount <= 0) {
+            return 0;
+        }
+        double n = pixelCount;
+        double stdDev = (n * sum2 - sum * sum) / n;
+        if (stdDev > 0) {
+            return Math.sqrt(stdDev / (n - 1));
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the median of the measured pixels, which is the middle value,
+     * or the average of the two middle values if the count is even.
+     */
+    public double getMedian() {
+        return median;
+    }
+
+    /**
+     * Finds the median without copying the pixels: the finite values in the
+     * ROI are counted in a histogram between the lowest and highest
+     * candidate, and only the bin holding the middle value is kept as the
+     * new candidate range. This is repeated until the bin holds at most
+     * MEDIAN_BUFFER values (or a single value), which are then collected
+     * and the middle one is found by selection. The bins are bounded by the
+     * values actually in them, so the result is exact.
+     */
+    private double findMedian(float[] pixels, byte[] mask, int width, Rectangle r) {
+        int k = pixelCount / 2;
+        boolean even = (pixelCount & 1) == 0;
+        float low = (float) min;
+        float high = (float) max;
+        // the number of values below low, and the highest of them
+        int below = 0;
+        float highestBelow = Float.NaN;
+        int[] counts = new int[MEDIAN_BINS];
+        float[] binMin = new float[MEDIAN_BINS];
+        float[] binMax = new float[MEDIAN_BINS];
+        for (int pass = 0;; pass++) {
+            if (low == high) {
+                return even && k - 1 < below ? (highestBelow + low) / 2f : low;
+            }
+            double scale = MEDIAN_BINS / ((double) high - low);
+            Arrays.fill(counts, 0);
+            Arrays.fill(binMin, Float.POSITIVE_INFINITY);
+            Arrays.fill(binMax, Float.NEGATIVE_INFINITY);
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int i = y * width + r.x;
+                int mi = (y - r.y) * r.width;
+                for (int x = 0; x < r.width; x++, i++, mi++) {
+                    float v = pixels[i];
+                    if (v >= low && v <= high && (mask == null || mask[mi] != 0)) {
+                        int bin = Math.min((int) ((v - (double) low) * scale), MEDIAN_BINS - 1);
+                        counts[bin]++;
+                        if (v < binMin[bin]) {
+                            binMin[bin] = v;
+                        }
+                        if (v > binMax[bin]) {
+                            binMax[bin] = v;
+                        }
+                    }
+                }
+            }
+            int bin = 0;
+            while (below + counts[bin] <= k) {
+                below += counts[bin];
+                if (counts[bin] > 0) {
+                    highestBelow = binMax[bin];
+                }
+                bin++;
+            }
+            low = binMin[bin];
+            high = binMax[bin];
+            if (low != high && (counts[bin] <= MEDIAN_BUFFER || pass + 1 == MEDIAN_PASSES)) {
+                return selectMedian(pixels, mask, width, r, low, high, counts[bin], k - below, even, highestBelow);
+            }
+        }
+    }
+
+    /**
+     * Collects the count values of [low, high] in the ROI, and returns the
+     * median from their k-th smallest one (and the one before it, which is
+     * highestBelow if k is 0, if even is set).
+     */
+    private static double selectMedian(float[] pixels, byte[] mask, int width, Rectangle r, float low, float high, int count, int k, boolean even, float highestBelow) {
+        float[] values = new float[count];
+        int n = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int i = y * width + r.x;
+            int mi = (y - r.y) * r.width;
+            for (int x = 0; x < r.width; x++, i++, mi++) {
+                float v = pixels[i];
+                if (v >= low && v <= high && (mask == null || mask[mi] != 0)) {
+                    values[n++] = v;
+                }
+            }
+        }
+        float upper = select(values, 0, count, k);
+        if (!even) {
+            return upper;
+        }
+        // after the selection every value before k is not higher than upper
+        float lower = highestBelow;
+        if (k > 0) {
+            lower = values[0];
+            for (int i = 1; i < k; i++) {
+                if (values[i] > lower) {
+                    lower = values[i];
+                }
+            }
+        }
+        return (lower + upper) / 2f;
+    }
+
+    /**
+     * Returns the k-th smallest value of a[from, to), and partially orders the
+     * range so that no value before k is higher than the returned one.
+     *
+     * This is a quickselect with three-way partitioning (the images contain
+     * many equal pixel values), which falls back to sorting the remaining
+     * range if the pivots are repeatedly bad.
+     */
+    static float select(float[] a, int from, int to, int k) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+        while (to - from > 16) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(a, from, to);
+                return a[k];
+            }
+            float pivot = medianOf3(a[from], a[(from + to) >>> 1], a[to - 1]);
+            // [from, lt) < pivot, [lt, i) == pivot, [gt, to) > pivot
+            int lt = from;
+            int i = from;
+            int gt = to;
+            while (i < gt) {
+                float v = a[i];
+                if (v < pivot) {
+                    a[i++] = a[lt];
+                    a[lt++] = v;
+                } else if (v > pivot) {
+                    a[i] = a[--gt];
+                    a[gt] = v;
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                to = lt;
+            } else if (k >= gt) {
+                from = gt;
+            } else {
+                return pivot;
+            }
+        }
+        Arrays.sort(a, from, to);
+        return a[k];
+    }
+
+    private static float medianOf3(float a, float b, float c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lists the image files of a directory, and optionally of its
+ * subdirectories, whose names match a glob pattern. The files are
+ * enumerated lazily, one directory at a time, without recursion: a
+ * directory is only read when the files of the previous ones have been
+ * taken.
+ *
+ * The order is deterministic: in each directory, the matching files come
+ * first in name order, then the subdirectories, also in name order.
+ */
+public class DirectoryScanner implements Iterable<File> {
+
+    /**
+     * The Zeiss LSM and CZI files processed by semi-automatic and batch
+     * processing.
+     */
+    public static final String FRET_IMAGE_GLOB = "*.{lsm,LSM,czi,CZI}";
+    private final Path root;
+    private final boolean recursive;
+    private final String glob;
+
+    public DirectoryScanner(File root, boolean recursive) {
+        this(root, recursive, FRET_IMAGE_GLOB);
+    }
+
+    /**
+     * The glob is matched against the file names, with the syntax of
+     * FileSystem.getPathMatcher, e.g. "*.{tif,tiff}".
+     */
+    public DirectoryScanner(File root, boolean recursive, String glob) {
+        this.root = root.toPath();
+        this.recursive = recursive;
+        this.glob = glob;
+    }
+
+    /**
+     * Returns the path of a file of the enumeration relative to the root
+     * directory, e.g. "cell 2/image.lsm", which is the file name if
+     * subdirectories are not included.
+     */
+    public String getRelativeName(File file) {
+        return root.relativize(file.toPath()).toString();
+    }
+
+    /**
+     * Returns a new enumeration of the files. Errors reading a directory are
+     * thrown as UncheckedIOException by hasNext and next.
+     */
+    @Override
+    public Iterator<File> iterator() {
+        return new FileIterator();
+    }
+
+    private class FileIterator implements Iterator<File> {
+
+        private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        private final Deque<Path> directories = new ArrayDeque<>();
+        private Iterator<Path> files = Collections.emptyIterator();
+
+        FileIterator() {
+            directories.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!files.hasNext() && !directories.isEmpty()) {
+                readDirectory(directories.pop());
+            }
+            return files.hasNext();
+        }
+
+        @Override
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return files.next().toFile();
+        }
+
+        private void readDirectory(Path directory) {
+            List<Path> matching = new ArrayList<>();
+            List<Path> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (Files.isDirectory(entry)) {
+                        // linked directories are not followed, so that links can not form cycles
+                        if (recursive && !Files.isSymbolicLink(entry)) {
+                            subdirectories.add(entry);
+                        }
+                    } else if (matcher.matches(entry.getFileName()) && Files.isRegularFile(entry)) {
+                        matching.add(entry);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not read directory " + directory + ".", ex);
+            }
+            Collections.sort(matching);
+            Collections.sort(subdirectories, Collections.reverseOrder());
+            for (Path subdirectory : subdirectories) {
+                directories.push(subdirectory);
+            }
+            files = matching.iterator();
+        }
+    }
+}
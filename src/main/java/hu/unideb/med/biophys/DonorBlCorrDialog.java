@@ -24,7 +24,6 @@ package hu.unideb.med.biophys;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.process.FHT;
 import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
@@ -343,28 +342,8 @@ public class DonorBlCorrDialog extends JDialog implements ActionListener {
                         accBlWindow.logError("No ROI is defined for donor before bleaching. (bl. corr.)");
                         return;
                     }
-                    ImageProcessor ipDB = donorCBefore.getProcessor();
-                    int width = donorCBefore.getWidth();
-                    int height = donorCBefore.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorCBefore.getRoi().contains(i, j)) {
-                                sum += ipDB.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgDB = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipDB.getPixelValue(x, y);
-                            value = value - backgroundAvgDB;
-                            ipDB.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgDB = new BackgroundSubtractor(accBlWindow.getFretEngine(), false).subtract(donorCBefore.getRoi(), donorCBefore.getProcessor())[0];
+                    accBlWindow.getImageRegistration().invalidate(donorCBefore.getProcessor());
                     donorCBefore.updateAndDraw();
                     donorCBefore.killRoi();
                     accBlWindow.log("Subtracted background (" + backgroundAvgDB + ") of donor before bleaching. (bl. corr.)");
@@ -381,28 +360,7 @@ public class DonorBlCorrDialog extends JDialog implements ActionListener {
                         accBlWindow.logError("No ROI is defined for donor after bleaching. (bl. corr.)");
                         return;
                     }
-                    ImageProcessor ipDA = donorCAfter.getProcessor();
-                    int width = donorCAfter.getWidth();
-                    int height = donorCAfter.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorCAfter.getRoi().contains(i, j)) {
-                                sum += ipDA.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgDA = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipDA.getPixelValue(x, y);
-                            value = value - backgroundAvgDA;
-                            ipDA.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgDA = new BackgroundSubtractor(accBlWindow.getFretEngine(), false).subtract(donorCAfter.getRoi(), donorCAfter.getProcessor())[0];
                     donorCAfter.updateAndDraw();
                     donorCAfter.killRoi();
                     accBlWindow.log("Subtracted background (" + backgroundAvgDA + ") of donor after bleaching. (bl. corr.)");
@@ -535,57 +493,52 @@ public class DonorBlCorrDialog extends JDialog implements ActionListener {
                     } else if (donorCAfter == null) {
                         accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
                         return;
+                    }
+                    ImageRegistration registration = accBlWindow.getImageRegistration();
+                    if (!registration.isSupportedSize(donorCBefore.getWidth(), donorCBefore.getHeight()) || donorCAfter.getWidth() != donorCBefore.getWidth() || donorCAfter.getHeight() != donorCBefore.getHeight()) {
+                        accBlWindow.logError("Images must have the same size, at least 2x2 pixels, for registration. (bl. corr.)");
                     } else {
-                        FHT fht1 = new FHT(donorCBefore.getProcessor().duplicate());
-                        fht1.setShowProgress(false);
-                        fht1.transform();
-                        FHT fht2 = new FHT(donorCAfter.getProcessor().duplicate());
-                        fht2.setShowProgress(false);
-                        fht2.transform();
-                        FHT res = fht1.conjugateMultiply(fht2);
-                        res.setShowProgress(false);
-                        res.inverseTransform();
-                        ImagePlus image = new ImagePlus("Result of registration", res);
-                        ImageProcessor ip = image.getProcessor();
-                        int width = ip.getWidth();
-                        int height = ip.getHeight();
-                        int maximum = 0;
-                        int maxx = -1;
-                        int maxy = -1;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (ip.getPixel(i, j) > maximum) {
-                                    maximum = ip.getPixel(i, j);
-                                    maxx = i;
-                                    maxy = j;
-                                }
-                            }
+                        boolean subPixel = accBlWindow.isSubPixelRegistration();
+                        double[] shift;
+                        if (accBlWindow.isCoarseToFineRegistration()) {
+                            int factor = registration.getCoarseFactor(donorCBefore.getWidth(), donorCBefore.getHeight());
+                            shift = registration.findShiftCoarseToFine(donorCBefore.getProcessor(), donorCAfter.getProcessor(), factor, subPixel);
+                            DecimalFormat msFormat = new DecimalFormat("#0");
+                            accBlWindow.log("Coarse-to-fine registration (" + factor + "x downsampled) took " + msFormat.format(registration.getLastDuration()) + " ms, a full-frame registration would take about " + msFormat.format(registration.getLastFullFrameEstimate()) + " ms (estimated from the transform sizes, not measured). (bl. corr.)");
+                        } else if (subPixel) {
+                            shift = registration.findSubPixelShift(donorCBefore.getProcessor(), donorCAfter.getProcessor());
+                        } else {
+                            int[] wholeShift = registration.findShift(donorCBefore.getProcessor(), donorCAfter.getProcessor());
+                            shift = new double[]{wholeShift[0], wholeShift[1]};
                         }
-                        int shiftX = 0;
-                        int shiftY = 0;
-                        if (maxx != 0 || maxy != 0) {
-                            ShiftDialog sd = new ShiftDialog(accBlWindow);
-                            if (maxy > height / 2) {
-                                accBlWindow.log("Shifting donor after image up " + (height - maxy) + " pixel" + ((height - maxy) > 1 ? "s" : "") + ". (bl. corr.)");
-                                sd.shiftUp(donorCAfter, height - maxy);
-                            } else if (maxy != 0) {
-                                accBlWindow.log("Shifting donor after image down " + maxy + " pixel" + (maxy > 1 ? "s" : "") + ". (bl. corr.)");
-                                sd.shiftDown(donorCAfter, maxy);
-                            }
-                            if (maxx > width / 2) {
-                                accBlWindow.log("Shifting donor after image to the left " + (width - maxx) + " pixel" + ((width - maxx) > 1 ? "s" : "") + ". (bl. corr.)");
-                                sd.shiftLeft(donorCAfter, width - maxx);
-                            } else if (maxx != 0) {
-                                accBlWindow.log("Shifting donor after image to the right " + maxx + " pixel" + (maxx > 1 ? "s" : "") + ". (bl. corr.)");
-                                sd.shiftRight(donorCAfter, maxx);
+                        if (subPixel) {
+                            DecimalFormat df = new DecimalFormat("#0.000");
+                            if (shift[0] != 0 || shift[1] != 0) {
+                                accBlWindow.log("Shifting donor after image by " + df.format(shift[0]) + " pixels to the right and " + df.format(shift[1]) + " pixels down. (bl. corr.)");
+                                ImageShifter.shift(shift[0], shift[1], donorCAfter);
                             }
-                            actionPerformed(new ActionEvent(registerButton, 1, "registerCImages"));
+                            accBlWindow.log("Registration finished. Shift: x=" + df.format(shift[0]) + " y=" + df.format(shift[1]) + " (bl. corr.)");
                         } else {
-                            accBlWindow.log("Registration finished. Maximum: x=" + maxx + " y=" + maxy + " (bl. corr.)");
-                            registerButton.setBackground(accBlWindow.greenColor);
-                            registerButton.setOpaque(true);
-                            registerButton.setBorderPainted(false);
+                            int shiftX = (int) shift[0];
+                            int shiftY = (int) shift[1];
+                            if (shiftX != 0 || shiftY != 0) {
+                                if (shiftY < 0) {
+                                    accBlWindow.log("Shifting donor after image up " + (-shiftY) + " pixel" + (-shiftY > 1 ? "s" : "") + ". (bl. corr.)");
+                                } else if (shiftY > 0) {
+                                    accBlWindow.log("Shifting donor after image down " + shiftY + " pixel" + (shiftY > 1 ? "s" : "") + ". (bl. corr.)");
+                                }
+                                if (shiftX < 0) {
+                                    accBlWindow.log("Shifting donor after image to the left " + (-shiftX) + " pixel" + (-shiftX > 1 ? "s" : "") + ". (bl. corr.)");
+                                } else if (shiftX > 0) {
+                                    accBlWindow.log("Shifting donor after image to the right " + shiftX + " pixel" + (shiftX > 1 ? "s" : "") + ". (bl. corr.)");
+                                }
+                                ImageShifter.shift(shiftX, shiftY, donorCAfter);
+                            }
+                            accBlWindow.log("Registration finished. Shift: x=" + shiftX + " y=" + shiftY + " (bl. corr.)");
                         }
+                        registerButton.setBackground(accBlWindow.greenColor);
+                        registerButton.setOpaque(true);
+                        registerButton.setBorderPainted(false);
                     }
                     break;
                 default:
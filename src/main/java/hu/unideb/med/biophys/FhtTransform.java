@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+
+/**
+ * Registration transform using the fast Hartley transform of ImageJ, on the
+ * calling thread. The FHT only transforms square images, so other images
+ * are zero-padded to a square, and the correlation of the square is folded
+ * back to the size of the images.
+ */
+public class FhtTransform implements RegistrationTransform {
+
+    @Override
+    public float[] forward(float[] image, int width, int height) {
+        int size = Math.max(width, height);
+        float[] square = image;
+        if (width != height) {
+            square = new float[size * size];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(image, y * width, square, y * size, width);
+            }
+        }
+        FHT fht = new FHT(new FloatProcessor(size, size, square));
+        fht.setShowProgress(false);
+        fht.transform();
+        return (float[]) fht.getPixels();
+    }
+
+    @Override
+    public float[] correlate(float[] referenceSpectrum, float[] movingSpectrum, int width, int height) {
+        int size = Math.max(width, height);
+        FHT reference = new FHT(new FloatProcessor(size, size, referenceSpectrum), true);
+        FHT moving = new FHT(new FloatProcessor(size, size, movingSpectrum), true);
+        FHT res = reference.conjugateMultiply(moving);
+        res.setShowProgress(false);
+        res.inverseTransform();
+        float[] square = (float[]) res.getPixels();
+        if (width == height) {
+            return square;
+        }
+        // the padded images are 0 outside width x height, so the sum of the
+        // shifts equal modulo the image size is their circular correlation
+        float[] correlation = new float[width * height];
+        for (int y = 0; y < size; y++) {
+            int row = (y & (height - 1)) * width;
+            for (int x = 0; x < size; x++) {
+                correlation[row + (x & (width - 1))] += square[y * size + x];
+            }
+        }
+        return correlation;
+    }
+}
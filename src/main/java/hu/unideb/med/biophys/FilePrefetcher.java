@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Opens and preprocesses the next file of semi-automatic processing on a
+ * background thread, while the user works on the current one. At most one
+ * file is prefetched: starting a new prefetch cancels the previous one.
+ *
+ * The preprocessing is that of semi-automatic mode: registration, blurring,
+ * subtraction of the background measured in the upper left corner (1/6 x 1/6
+ * of the image), filling the background with 0, and automatic thresholding.
+ */
+public class FilePrefetcher {
+
+    private final ParallelFretEngine engine;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AccPbFRET prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private File pendingFile;
+    private FretParameters pendingParameters;
+    private Future<PreparedFile> pending;
+
+    /**
+     * The preprocessed channels of a file, with the values logged during the
+     * preprocessing, or the error which stopped it.
+     */
+    public static class PreparedFile {
+
+        private final File file;
+        private FretPipeline pipeline;
+        private final ImageProcessor[] saves = new ImageProcessor[4];
+        private double[] shift;
+        private float[] backgroundAverages;
+        private float[] thresholds;
+        private String error;
+
+        PreparedFile(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the pipeline holding the preprocessed channels.
+         */
+        public FretPipeline getPipeline() {
+            return pipeline;
+        }
+
+        /**
+         * Returns the copy of a channel kept for resetting blur and threshold:
+         * the processed channels after background subtraction, the other
+         * acceptor channel as opened, null for the other channels.
+         */
+        public ImageProcessor getSave(int channel) {
+            return saves[channel];
+        }
+
+        public double[] getShift() {
+            return shift;
+        }
+
+        /**
+         * Returns the subtracted background averages of the processed
+         * channels.
+         */
+        public float[] getBackgroundAverages() {
+            return backgroundAverages;
+        }
+
+        /**
+         * Returns the thresholds of the processed channels, NaN for the ones
+         * without an automatic threshold method.
+         */
+        public float[] getThresholds() {
+            return thresholds;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    public FilePrefetcher(ParallelFretEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Starts preprocessing the file with the parameters, cancelling the
+     * previous prefetch.
+     */
+    public synchronized void prefetch(final File file, final FretParameters parameters) {
+        cancel();
+        pendingFile = file;
+        pendingParameters = parameters;
+        pending = executor.submit(() -> prepare(file, parameters));
+    }
+
+    /**
+     * Returns the prefetched file, waiting for its preprocessing to finish,
+     * if it is the given file with the same parameters. Otherwise returns
+     * null. The prefetch is released in both cases.
+     */
+    public synchronized PreparedFile take(File file, FretParameters parameters) {
+        if (pending == null || !file.equals(pendingFile) || !parameters.equals(pendingParameters)) {
+            cancel();
+            return null;
+        }
+        Future<PreparedFile> future = pending;
+        pending = null;
+        pendingFile = null;
+        pendingParameters = null;
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException | ExecutionException ex) {
+            return null;
+        }
+    }
+
+    public synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+            pendingFile = null;
+            pendingParameters = null;
+        }
+    }
+
+    public synchronized void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private PreparedFile prepare(File file, FretParameters parameters) throws InterruptedException {
+        PreparedFile prepared = new PreparedFile(file);
+        try {
+            FretPipeline pipeline = FretPipeline.open(file, parameters, engine);
+            int[] processed = pipeline.getProcessedChannels();
+            for (int channel = FretPipeline.ACCEPTOR_BEFORE; channel <= FretPipeline.ACCEPTOR_AFTER; channel++) {
+                if (!contains(processed, channel)) {
+                    prepared.saves[channel] = pipeline.getChannel(channel).duplicate();
+                }
+            }
+            checkInterrupted();
+            prepared.shift = pipeline.register();
+            checkInterrupted();
+            pipeline.smooth();
+            checkInterrupted();
+            ImageProcessor donorBefore = pipeline.getChannel(FretPipeline.DONOR_BEFORE);
+            Roi background = new Roi(0, 0, donorBefore.getWidth() / 6, donorBefore.getHeight() / 6);
+            prepared.backgroundAverages = pipeline.subtractBackground(background);
+            for (int channel : processed) {
+                prepared.saves[channel] = pipeline.getChannel(channel).duplicate();
+            }
+            pipeline.fillBackground(background);
+            checkInterrupted();
+            prepared.thresholds = pipeline.threshold();
+            prepared.pipeline = pipeline;
+        } catch (RuntimeException ex) {
+            prepared.error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+        }
+        return prepared;
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static boolean contains(int[] channels, int channel) {
+        for (int c : channels) {
+            if (c == channel) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
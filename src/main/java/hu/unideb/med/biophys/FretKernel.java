@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+/**
+ * Calculates the transfer (FRET) efficiency image in a single pass over the
+ * donor and acceptor pixel arrays, applying the enabled corrections and the
+ * acceptor mask for every pixel at once.
+ */
+public class FretKernel {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final ThreadLocal<float[]> SCRATCH = ThreadLocal.withInitial(() -> new float[CHUNK_SIZE]);
+    private final boolean donorBlCorrection;
+    private final boolean accCrossTalkCorrection;
+    private final boolean accPhotoprCorrection;
+    private final boolean partialBlCorrection;
+    private final boolean useAcceptorAsMask;
+    private final float donorBlCorr;
+    private final float acceptorCTCorr;
+    private final float acceptorPPCorr;
+    private final float partialBlCorr;
+
+    public FretKernel(boolean donorBlCorrection, float donorBlCorr, boolean accCrossTalkCorrection, float acceptorCTCorr, boolean accPhotoprCorrection, float acceptorPPCorr, boolean partialBlCorrection, float partialBlCorr, boolean useAcceptorAsMask) {
+        this.donorBlCorrection = donorBlCorrection;
+        this.donorBlCorr = donorBlCorr;
+        this.accCrossTalkCorrection = accCrossTalkCorrection;
+        this.acceptorCTCorr = acceptorCTCorr;
+        this.accPhotoprCorrection = accPhotoprCorrection;
+        this.acceptorPPCorr = acceptorPPCorr;
+        this.partialBlCorrection = partialBlCorrection;
+        this.partialBlCorr = partialBlCorr;
+        this.useAcceptorAsMask = useAcceptorAsMask;
+    }
+
+    public void compute(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] transfer) {
+        compute(donorBefore, donorAfter, acceptorBefore, transfer, 0, transfer.length);
+    }
+
+    /**
+     * Calculates the transfer efficiency of the pixels in the [from, to) index
+     * range. The source arrays are not modified.
+     *
+     * The range is processed in chunks that fit in the L1 cache, with one
+     * simple loop per correction step, so that the JIT compiler can vectorize
+     * them. The loops contain no NaN checks: NaN pixels propagate through the
+     * arithmetic, which gives the same NaN pixels as checking every input.
+     */
+    public void compute(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] transfer, int from, int to) {
+        float[] scratch = SCRATCH.get();
+        for (int start = from; start < to; start += CHUNK_SIZE) {
+            int end = Math.min(start + CHUNK_SIZE, to);
+            if (!partialBlCorrection) {
+                computeFull(donorBefore, donorAfter, acceptorBefore, transfer, scratch, start, end);
+            } else {
+                computePartial(donorBefore, donorAfter, acceptorBefore, transfer, scratch, start, end);
+            }
+            // acceptor as mask
+            if (useAcceptorAsMask) {
+                for (int i = start; i < end; i++) {
+                    float ab = acceptorBefore[i];
+                    transfer[i] = Float.isNaN(ab) || ab == 0 ? Float.NaN : transfer[i];
+                }
+            }
+        }
+    }
+
+    private void computeFull(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] transfer, float[] scratch, int start, int end) {
+        int length = end - start;
+        // acceptor cross-talk correction, the corrected donor before is kept in transfer
+        if (accCrossTalkCorrection) {
+            for (int i = start; i < end; i++) {
+                transfer[i] = donorBefore[i] - acceptorBefore[i] * acceptorCTCorr;
+            }
+        } else {
+            System.arraycopy(donorBefore, start, transfer, start, length);
+        }
+        // acceptor photoproduct correction, the corrected donor after is kept in scratch
+        if (accPhotoprCorrection) {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = donorAfter[start + i] - acceptorBefore[start + i] * acceptorPPCorr;
+            }
+        } else {
+            System.arraycopy(donorAfter, start, scratch, 0, length);
+        }
+        // donor bleaching correction
+        if (donorBlCorrection) {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = scratch[i] * donorBlCorr;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            transfer[start + i] = 1 - (transfer[start + i] / scratch[i]);
+        }
+    }
+
+    private void computePartial(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] transfer, float[] scratch, int start, int end) {
+        int length = end - start;
+        double acceptorCorr = (double) partialBlCorr * (double) acceptorCTCorr + acceptorPPCorr * ((double) 1 - (double) partialBlCorr);
+        double notBleached = (double) 1 - (double) partialBlCorr;
+        // acceptor cross-talk correction, the corrected donor before is kept in transfer
+        if (accCrossTalkCorrection) {
+            for (int i = start; i < end; i++) {
+                transfer[i] = donorBefore[i] - acceptorBefore[i] * acceptorCTCorr;
+            }
+        } else {
+            System.arraycopy(donorBefore, start, transfer, start, length);
+        }
+        // the corrected donor after is kept in scratch
+        if (accCrossTalkCorrection || accPhotoprCorrection) {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = (float) (donorBlCorr * (donorAfter[start + i] - acceptorCorr * acceptorBefore[start + i]) - (double) partialBlCorr * (double) transfer[start + i]);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = (float) ((double) donorBlCorr * (double) donorAfter[start + i] - (double) partialBlCorr * (double) transfer[start + i]);
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            transfer[start + i] = (float) (1 - (notBleached * transfer[start + i] / scratch[i]));
+        }
+    }
+}
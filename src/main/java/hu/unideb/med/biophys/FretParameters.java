@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The settings of a FRET calculation: the enabled corrections with their
+ * factors, the use of the acceptor as mask, and the smoothing and
+ * registration options. Instances are immutable, the with methods return a
+ * modified copy. The defaults are those of the plugin window: no
+ * corrections, acceptor used as mask, Gaussian blur with sigma 0.8,
+ * whole pixel registration with the shift applied to the acceptor, and no
+ * automatic thresholding.
+ */
+public class FretParameters {
+
+    private final boolean donorBlCorrection;
+    private final float donorBlCorr;
+    private final boolean accCrossTalkCorrection;
+    private final float acceptorCTCorr;
+    private final boolean accPhotoprCorrection;
+    private final float acceptorPPCorr;
+    private final boolean partialBlCorrection;
+    private final float partialBlCorr;
+    private final boolean useAcceptorAsMask;
+    private final double[] sigmas;
+    private final boolean recursiveBlur;
+    private final boolean nanAwareBlur;
+    private final boolean subPixelRegistration;
+    private final boolean coarseToFineRegistration;
+    private final boolean applyShiftToAcceptor;
+    private final int[] thresholdMethods;
+    private final double thresholdPercentile;
+
+    public FretParameters() {
+        this(false, 1, false, 0, false, 0, false, 0, true, new double[]{0.8, 0.8, 0.8, 0.8}, false, false, false, false, true, new int[4], 50);
+    }
+
+    private FretParameters(boolean donorBlCorrection, float donorBlCorr, boolean accCrossTalkCorrection, float acceptorCTCorr, boolean accPhotoprCorrection, float acceptorPPCorr, boolean partialBlCorrection, float partialBlCorr, boolean useAcceptorAsMask, double[] sigmas, boolean recursiveBlur, boolean nanAwareBlur, boolean subPixelRegistration, boolean coarseToFineRegistration, boolean applyShiftToAcceptor, int[] thresholdMethods, double thresholdPercentile) {
+        this.donorBlCorrection = donorBlCorrection;
+        this.donorBlCorr = donorBlCorr;
+        this.accCrossTalkCorrection = accCrossTalkCorrection;
+        this.acceptorCTCorr = acceptorCTCorr;
+        this.accPhotoprCorrection = accPhotoprCorrection;
+        this.acceptorPPCorr = acceptorPPCorr;
+        this.partialBlCorrection = partialBlCorrection;
+        this.partialBlCorr = partialBlCorr;
+        this.useAcceptorAsMask = useAcceptorAsMask;
+        this.sigmas = sigmas;
+        this.recursiveBlur = recursiveBlur;
+        this.nanAwareBlur = nanAwareBlur;
+        this.subPixelRegistration = subPixelRegistration;
+        this.coarseToFineRegistration = coarseToFineRegistration;
+        this.applyShiftToAcceptor = applyShiftToAcceptor;
+        this.thresholdMethods = thresholdMethods;
+        this.thresholdPercentile = thresholdPercentile;
+    }
+
+    public FretParameters withDonorBleachingCorrection(boolean enabled, float factor) {
+        return new FretParameters(enabled, enabled ? factor : 1, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    public FretParameters withAcceptorCrossTalkCorrection(boolean enabled, float factor) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, enabled, enabled ? factor : 0, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    public FretParameters withAcceptorPhotoproductCorrection(boolean enabled, float factor) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, enabled, enabled ? factor : 0, partialBlCorrection, partialBlCorr, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    public FretParameters withPartialBleachingCorrection(boolean enabled, float factor) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, enabled, enabled ? factor : 0, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    public FretParameters withAcceptorAsMask(boolean enabled) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, enabled, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    /**
+     * Sets the sigma (radius) of the Gaussian blur for the donor before,
+     * donor after, acceptor before and acceptor after channels, in pixels.
+     */
+    public FretParameters withSmoothing(double sigmaDB, double sigmaDA, double sigmaAB, double sigmaAA, boolean recursive, boolean nanAware) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, new double[]{sigmaDB, sigmaDA, sigmaAB, sigmaAA}, recursive, nanAware, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    public FretParameters withRegistration(boolean subPixel, boolean coarseToFine, boolean applyShiftToAcceptor) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixel, coarseToFine, applyShiftToAcceptor, thresholdMethods, thresholdPercentile);
+    }
+
+    /**
+     * Sets the automatic threshold method of the four channels, one of the
+     * constants of AutoThreshold, and the percentage of pixels set to NaN by
+     * the PERCENTILE method.
+     */
+    public FretParameters withThresholds(int methodDB, int methodDA, int methodAB, int methodAA, double percentile) {
+        return new FretParameters(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, sigmas, recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, new int[]{methodDB, methodDA, methodAB, methodAA}, percentile);
+    }
+
+    /**
+     * Returns the kernel calculating the transfer image with these
+     * corrections.
+     */
+    public FretKernel createKernel() {
+        return new FretKernel(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask);
+    }
+
+    /**
+     * Returns whether the acceptor before image is needed for the
+     * calculation.
+     */
+    public boolean isAcceptorBeforeNeeded() {
+        return useAcceptorAsMask || accCrossTalkCorrection || accPhotoprCorrection || partialBlCorrection;
+    }
+
+    public boolean isDonorBlCorrection() {
+        return donorBlCorrection;
+    }
+
+    public float getDonorBlCorr() {
+        return donorBlCorr;
+    }
+
+    public boolean isAccCrossTalkCorrection() {
+        return accCrossTalkCorrection;
+    }
+
+    public float getAcceptorCTCorr() {
+        return acceptorCTCorr;
+    }
+
+    public boolean isAccPhotoprCorrection() {
+        return accPhotoprCorrection;
+    }
+
+    public float getAcceptorPPCorr() {
+        return acceptorPPCorr;
+    }
+
+    public boolean isPartialBlCorrection() {
+        return partialBlCorrection;
+    }
+
+    public float getPartialBlCorr() {
+        return partialBlCorr;
+    }
+
+    public boolean isUseAcceptorAsMask() {
+        return useAcceptorAsMask;
+    }
+
+    /**
+     * Returns the sigma of the given channel, one of the channel constants
+     * of FretPipeline.
+     */
+    public double getSigma(int channel) {
+        return sigmas[channel];
+    }
+
+    public boolean isRecursiveBlur() {
+        return recursiveBlur;
+    }
+
+    public boolean isNanAwareBlur() {
+        return nanAwareBlur;
+    }
+
+    public boolean isSubPixelRegistration() {
+        return subPixelRegistration;
+    }
+
+    public boolean isCoarseToFineRegistration() {
+        return coarseToFineRegistration;
+    }
+
+    public boolean isApplyShiftToAcceptor() {
+        return applyShiftToAcceptor;
+    }
+
+    public int getThresholdMethod(int channel) {
+        return thresholdMethods[channel];
+    }
+
+    public double getThresholdPercentile() {
+        return thresholdPercentile;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof FretParameters)) {
+            return false;
+        }
+        FretParameters other = (FretParameters) object;
+        return donorBlCorrection == other.donorBlCorrection && Float.compare(donorBlCorr, other.donorBlCorr) == 0
+                && accCrossTalkCorrection == other.accCrossTalkCorrection && Float.compare(acceptorCTCorr, other.acceptorCTCorr) == 0
+                && accPhotoprCorrection == other.accPhotoprCorrection && Float.compare(acceptorPPCorr, other.acceptorPPCorr) == 0
+                && partialBlCorrection == other.partialBlCorrection && Float.compare(partialBlCorr, other.partialBlCorr) == 0
+                && useAcceptorAsMask == other.useAcceptorAsMask && Arrays.equals(sigmas, other.sigmas)
+                && recursiveBlur == other.recursiveBlur && nanAwareBlur == other.nanAwareBlur
+                && subPixelRegistration == other.subPixelRegistration && coarseToFineRegistration == other.coarseToFineRegistration
+                && applyShiftToAcceptor == other.applyShiftToAcceptor && Arrays.equals(thresholdMethods, other.thresholdMethods)
+                && Double.compare(thresholdPercentile, other.thresholdPercentile) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(donorBlCorrection, donorBlCorr, accCrossTalkCorrection, acceptorCTCorr, accPhotoprCorrection, acceptorPPCorr, partialBlCorrection, partialBlCorr, useAcceptorAsMask, Arrays.hashCode(sigmas), recursiveBlur, nanAwareBlur, subPixelRegistration, coarseToFineRegistration, applyShiftToAcceptor, Arrays.hashCode(thresholdMethods), thresholdPercentile);
+    }
+
+    /**
+     * Returns all settings as text, which is the same for equal parameters,
+     * also in later runs of the plugin.
+     */
+    @Override
+    public String toString() {
+        return "donorBlCorrection=" + donorBlCorrection + ",donorBlCorr=" + donorBlCorr
+                + ",accCrossTalkCorrection=" + accCrossTalkCorrection + ",acceptorCTCorr=" + acceptorCTCorr
+                + ",accPhotoprCorrection=" + accPhotoprCorrection + ",acceptorPPCorr=" + acceptorPPCorr
+                + ",partialBlCorrection=" + partialBlCorrection + ",partialBlCorr=" + partialBlCorr
+                + ",useAcceptorAsMask=" + useAcceptorAsMask + ",sigmas=" + Arrays.toString(sigmas)
+                + ",recursiveBlur=" + recursiveBlur + ",nanAwareBlur=" + nanAwareBlur
+                + ",subPixelRegistration=" + subPixelRegistration + ",coarseToFineRegistration=" + coarseToFineRegistration
+                + ",applyShiftToAcceptor=" + applyShiftToAcceptor + ",thresholdMethods=" + Arrays.toString(thresholdMethods)
+                + ",thresholdPercentile=" + thresholdPercentile;
+    }
+}
@@ -0,0 +1,356 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.Opener;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.File;
+
+/**
+ * The processing steps of acceptor photobleaching FRET on the four channel
+ * images, without windows: background subtraction, smoothing, registration,
+ * automatic thresholding and calculation and measurement of the transfer
+ * (FRET) efficiency image.
+ * The settings are taken from an immutable FretParameters object.
+ *
+ * The channels are modified in place by the steps, in the order the caller
+ * invokes them. A missing channel or an invalid image size is reported with
+ * an IllegalStateException or IllegalArgumentException, with the same
+ * message as in the plugin window.
+ */
+public class FretPipeline {
+
+    public static final int DONOR_BEFORE = 0;
+    public static final int DONOR_AFTER = 1;
+    public static final int ACCEPTOR_BEFORE = 2;
+    public static final int ACCEPTOR_AFTER = 3;
+    private static final String[] CHANNEL_NAMES = {"donor before bleaching", "donor after bleaching", "acceptor before bleaching", "acceptor after bleaching"};
+    private final FretParameters parameters;
+    private final ParallelFretEngine engine;
+    private final ImageRegistration registration;
+    private final ImageProcessor[] channels = new ImageProcessor[4];
+
+    public FretPipeline(FretParameters parameters, ParallelFretEngine engine) {
+        this(parameters, engine, new ImageRegistration(new ParallelFftTransform(engine)));
+    }
+
+    public FretPipeline(FretParameters parameters, ParallelFretEngine engine, ImageRegistration registration) {
+        this.parameters = parameters;
+        this.engine = engine;
+        this.registration = registration;
+    }
+
+    /**
+     * Opens an image file with the two channels before and after bleaching
+     * (4 images, in channel, then time order), and returns a pipeline on its
+     * images, converted to 32-bit.
+     */
+    public static FretPipeline open(File file, FretParameters parameters, ParallelFretEngine engine) {
+        ImagePlus image = new Opener().openImage(file.getAbsolutePath());
+        if (image == null) {
+            throw new IllegalArgumentException("Could not open the file.");
+        }
+        ImageStack stack = image.getStack();
+        if (stack.getSize() != 4) {
+            throw new IllegalArgumentException("The file has to contain 2 channels before and after bleaching (4 images), it contains " + stack.getSize() + ".");
+        }
+        FretPipeline pipeline = new FretPipeline(parameters, engine);
+        pipeline.setChannels(stack.getProcessor(1).convertToFloat(), stack.getProcessor(3).convertToFloat(), stack.getProcessor(2).convertToFloat(), stack.getProcessor(4).convertToFloat());
+        return pipeline;
+    }
+
+    public FretParameters getParameters() {
+        return parameters;
+    }
+
+    public ImageRegistration getRegistration() {
+        return registration;
+    }
+
+    /**
+     * Sets the channel images, which are processed in place. The acceptor
+     * images may be null if the parameters do not need them.
+     */
+    public void setChannels(ImageProcessor donorBefore, ImageProcessor donorAfter, ImageProcessor acceptorBefore, ImageProcessor acceptorAfter) {
+        setChannel(DONOR_BEFORE, donorBefore);
+        setChannel(DONOR_AFTER, donorAfter);
+        setChannel(ACCEPTOR_BEFORE, acceptorBefore);
+        setChannel(ACCEPTOR_AFTER, acceptorAfter);
+    }
+
+    /**
+     * Sets a channel image, which has to be 32-bit, as the steps modify its
+     * pixels in place.
+     */
+    public void setChannel(int channel, ImageProcessor ip) {
+        if (ip != null && !(ip instanceof FloatProcessor)) {
+            throw new IllegalArgumentException("The " + CHANNEL_NAMES[channel] + " image has to be 32-bit.");
+        }
+        channels[channel] = ip;
+    }
+
+    public ImageProcessor getChannel(int channel) {
+        return channels[channel];
+    }
+
+    public static String getChannelName(int channel) {
+        return CHANNEL_NAMES[channel];
+    }
+
+    /**
+     * Returns the channels used by the selected corrections: the donor
+     * images, and the acceptor images needed by partial acceptor
+     * photobleaching correction or by using the acceptor as mask.
+     */
+    public int[] getProcessedChannels() {
+        if (parameters.isPartialBlCorrection()) {
+            return new int[]{DONOR_BEFORE, DONOR_AFTER, ACCEPTOR_BEFORE, ACCEPTOR_AFTER};
+        } else if (parameters.isUseAcceptorAsMask()) {
+            return new int[]{DONOR_BEFORE, DONOR_AFTER, ACCEPTOR_BEFORE};
+        }
+        return new int[]{DONOR_BEFORE, DONOR_AFTER};
+    }
+
+    /**
+     * Subtracts the background measured in roi from the processed channels,
+     * setting negative pixels to 0, and returns the subtracted averages.
+     */
+    public float[] subtractBackground(Roi roi) {
+        return subtractBackground(roi, getProcessedChannels());
+    }
+
+    public float[] subtractBackground(Roi roi, int... channelList) {
+        if (roi == null) {
+            throw new IllegalArgumentException("A ROI is required for background subtraction.");
+        }
+        float[] averages = new BackgroundSubtractor(engine, true).subtract(roi, getProcessors(channelList));
+        invalidate(channelList);
+        return averages;
+    }
+
+    /**
+     * Sets the pixels of the processed channels in the bounding rectangle of
+     * the background ROI to 0.
+     */
+    public void fillBackground(Roi roi) {
+        for (int channel : getProcessedChannels()) {
+            ImageProcessor ip = getRequired(channel);
+            ip.setRoi(roi.getBounds());
+            ip.setValue(0);
+            ip.fill();
+            ip.resetRoi();
+        }
+        invalidate(getProcessedChannels());
+    }
+
+    /**
+     * Blurs the processed channels with their sigmas, all of them at the
+     * same time.
+     */
+    public void smooth() {
+        smooth(getProcessedChannels());
+    }
+
+    public void smooth(int... channelList) {
+        double[] sigmas = new double[channelList.length];
+        for (int i = 0; i < channelList.length; i++) {
+            sigmas[i] = parameters.getSigma(channelList[i]);
+        }
+        new ChannelSmoother(engine, parameters.isRecursiveBlur(), parameters.isNanAwareBlur()).smooth(getProcessors(channelList), sigmas);
+        invalidate(channelList);
+    }
+
+    /**
+     * Applies the automatic threshold methods of the processed channels,
+     * setting the pixels below the threshold to NaN, and returns the
+     * thresholds (NaN for the channels without a method).
+     */
+    public float[] threshold() {
+        return threshold(getProcessedChannels());
+    }
+
+    public float[] threshold(int... channelList) {
+        AutoThreshold autoThreshold = new AutoThreshold(engine);
+        float[] thresholds = new float[channelList.length];
+        for (int i = 0; i < channelList.length; i++) {
+            ImageProcessor ip = getRequired(channelList[i]);
+            thresholds[i] = autoThreshold.apply((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), parameters.getThresholdMethod(channelList[i]), parameters.getThresholdPercentile());
+            ip.resetMinAndMax();
+        }
+        invalidate(channelList);
+        return thresholds;
+    }
+
+    /**
+     * Registers the donor after image to the donor before image, and shifts
+     * the donor after (and if set, the acceptor after) image accordingly.
+     * Returns the shift, {dx, dy}, positive to the right and down.
+     */
+    public double[] register() {
+        ImageProcessor donorBefore = getRequired(DONOR_BEFORE);
+        ImageProcessor donorAfter = getRequired(DONOR_AFTER);
+        int width = donorBefore.getWidth();
+        int height = donorBefore.getHeight();
+        if (!registration.isSupportedSize(width, height) || donorAfter.getWidth() != width || donorAfter.getHeight() != height) {
+            throw new IllegalArgumentException("Images must have the same size, at least 2x2 pixels, for registration.");
+        }
+        ImageProcessor acceptorAfter = parameters.isApplyShiftToAcceptor() ? channels[ACCEPTOR_AFTER] : null;
+        double[] shift;
+        if (parameters.isCoarseToFineRegistration()) {
+            shift = registration.findShiftCoarseToFine(donorBefore, donorAfter, registration.getCoarseFactor(width, height), parameters.isSubPixelRegistration());
+        } else if (parameters.isSubPixelRegistration()) {
+            shift = registration.findSubPixelShift(donorBefore, donorAfter);
+        } else {
+            int[] wholeShift = registration.findShift(donorBefore, donorAfter);
+            shift = new double[]{wholeShift[0], wholeShift[1]};
+        }
+        if (shift[0] != 0 || shift[1] != 0) {
+            if (parameters.isSubPixelRegistration()) {
+                ImageShifter.shift(shift[0], shift[1], donorAfter, acceptorAfter);
+            } else {
+                ImageShifter.shift((int) shift[0], (int) shift[1], donorAfter, acceptorAfter);
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * Returns the partial acceptor photobleaching correction factor, the
+     * average acceptor after / acceptor before ratio of the pixels in roi (or
+     * of all pixels if it is null).
+     */
+    public float calculatePartialBlCorrection(Roi roi) {
+        ImageProcessor acceptorBefore = getRequired(ACCEPTOR_BEFORE);
+        ImageProcessor acceptorAfter = getRequired(ACCEPTOR_AFTER);
+        int width = acceptorBefore.getWidth();
+        int height = acceptorBefore.getHeight();
+        float[] abPixels = (float[]) acceptorBefore.getPixels();
+        float[] aaPixels = (float[]) acceptorAfter.getPixels();
+        double sum = 0;
+        int count = 0;
+        if (roi != null) {
+            RoiMask mask = RoiMask.get(roi, width, height);
+            int[] spans = mask.getSpans();
+            for (int y = 0; y < height; y++) {
+                for (int s = mask.getFirstSpan(y); s < mask.getFirstSpan(y + 1); s++) {
+                    for (int i = y * width + spans[2 * s]; i < y * width + spans[2 * s + 1]; i++) {
+                        if (!Float.isNaN(aaPixels[i]) && !Float.isNaN(abPixels[i])) {
+                            sum += aaPixels[i] / abPixels[i];
+                            count++;
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                for (int i = x; i < width * height; i += width) {
+                    if (!Float.isNaN(aaPixels[i]) && !Float.isNaN(abPixels[i])) {
+                        sum += aaPixels[i] / abPixels[i];
+                        count++;
+                    }
+                }
+            }
+        }
+        return (float) (sum / count);
+    }
+
+    /**
+     * Calculates the transfer efficiency image into a new processor.
+     */
+    public FloatProcessor computeTransferImage() {
+        ImageProcessor donorAfter = getRequired(DONOR_AFTER);
+        FloatProcessor transfer = new FloatProcessor(donorAfter.getWidth(), donorAfter.getHeight());
+        computeTransferImage(transfer);
+        return transfer;
+    }
+
+    /**
+     * Calculates the transfer efficiency image into the given processor,
+     * applying the corrections of the parameters.
+     */
+    public void computeTransferImage(FloatProcessor transfer) {
+        float[] donorBefore = (float[]) getRequired(DONOR_BEFORE).getPixels();
+        float[] donorAfter = (float[]) getRequired(DONOR_AFTER).getPixels();
+        float[] acceptorBefore = null;
+        if (parameters.isAcceptorBeforeNeeded()) {
+            acceptorBefore = (float[]) getRequired(ACCEPTOR_BEFORE).getPixels();
+        } else if (channels[ACCEPTOR_BEFORE] != null) {
+            acceptorBefore = (float[]) channels[ACCEPTOR_BEFORE].getPixels();
+        }
+        engine.compute(parameters.createKernel(), donorBefore, donorAfter, acceptorBefore, (float[]) transfer.getPixels(), transfer.getWidth(), transfer.getHeight());
+        transfer.resetMinAndMax();
+    }
+
+    /**
+     * Measures the transfer image, the donor images and, if set, the acceptor
+     * before image in the bounding rectangle of roi (the whole images if it is
+     * null or not an area), as the plugin has always measured them. The
+     * pixels inside roi itself are counted for the transfer image.
+     */
+    public ChannelStatistics[] measure(FloatProcessor transfer, Roi roi) {
+        ImageProcessor[] processors;
+        if (channels[ACCEPTOR_BEFORE] != null) {
+            processors = new ImageProcessor[]{transfer, getRequired(DONOR_BEFORE), getRequired(DONOR_AFTER), channels[ACCEPTOR_BEFORE]};
+        } else {
+            processors = new ImageProcessor[]{transfer, getRequired(DONOR_BEFORE), getRequired(DONOR_AFTER)};
+        }
+        for (ImageProcessor ip : processors) {
+            if (roi != null && roi.isArea()) {
+                ip.setRoi(roi.getBounds());
+            } else {
+                ip.resetRoi();
+            }
+        }
+        boolean[] withMedian = new boolean[processors.length];
+        withMedian[0] = true;
+        return ChannelStatistics.measure(processors, withMedian, roi);
+    }
+
+    private ImageProcessor getRequired(int channel) {
+        if (channels[channel] == null) {
+            throw new IllegalStateException("No image is set as " + CHANNEL_NAMES[channel] + ".");
+        }
+        return channels[channel];
+    }
+
+    /**
+     * Removes the cached registration transforms of the channels modified in
+     * place.
+     */
+    private void invalidate(int[] channelList) {
+        for (int channel : channelList) {
+            registration.invalidate(channels[channel]);
+        }
+    }
+
+    private ImageProcessor[] getProcessors(int[] channelList) {
+        ImageProcessor[] processors = new ImageProcessor[channelList.length];
+        for (int i = 0; i < channelList.length; i++) {
+            processors[i] = getRequired(channelList[i]);
+        }
+        return processors;
+    }
+}
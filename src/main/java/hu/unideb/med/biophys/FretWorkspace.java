@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Decides where a recalculated transfer image is written. The transfer
+ * image shown in a window is recalculated in place, in its own pixel
+ * array, so that a recompute allocates no full-frame arrays. Its ROI is
+ * kept, and the following measurement uses it, like after the processor
+ * of the window was replaced before. In every other case a new processor
+ * is created, so that no array which may still back another image is
+ * written.
+ */
+public class FretWorkspace {
+
+    /**
+     * Returns the processor of the transfer image if it is shown and has the
+     * given size, otherwise a new processor.
+     */
+    public static FloatProcessor getTransferProcessor(ImagePlus transferImage, int width, int height) {
+        if (transferImage != null && transferImage.getWindow() != null) {
+            ImageProcessor ip = transferImage.getProcessor();
+            if (ip instanceof FloatProcessor && ip.getWidth() == width && ip.getHeight() == height) {
+                return (FloatProcessor) ip;
+            }
+        }
+        return new FloatProcessor(width, height);
+    }
+}
@@ -0,0 +1,473 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.process.ImageProcessor;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Registers an image to a reference image by the cross-correlation of the
+ * two images, calculated with a RegistrationTransform. Images of any size
+ * can be registered: along each axis they are cropped or padded to a power
+ * of 2 length, so rectangular images have rectangular transforms.
+ *
+ * The transform of the last reference images is kept, and used again while
+ * the same pixel array is registered as reference with the same content.
+ * The content is compared by a checksum of the pixels, which is much
+ * cheaper than the transform, so a reference modified in place by any code
+ * is transformed again. invalidate only drops a transform early.
+ */
+public class ImageRegistration {
+
+    /**
+     * The number of reference transforms kept, one for the plugin and one for
+     * the bleaching correction dialog.
+     */
+    private static final int CACHE_SIZE = 2;
+    private final LinkedList<ReferenceSpectrum> cache = new LinkedList<>();
+    /**
+     * The largest size of the full resolution window used in the refinement
+     * step of coarse-to-fine registration.
+     */
+    public static final int REFINE_SIZE = 512;
+    private final RegistrationTransform transform;
+    private long lastDuration;
+    private long lastFullFrameEstimate;
+
+    /**
+     * Creates a registration using ImageJ's fast Hartley transform.
+     */
+    public ImageRegistration() {
+        this(new FhtTransform());
+    }
+
+    public ImageRegistration(RegistrationTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Returns true if images of the given size can be registered.
+     */
+    public boolean isSupportedSize(int width, int height) {
+        return width > 1 && height > 1;
+    }
+
+    /**
+     * Returns the (power of 2) length of the transforms along an axis of
+     * the given length. The axis is cropped to the largest power of 2 that
+     * fits in it if that keeps at least 1/sqrt(2) of it (half of the area of
+     * a square image), otherwise it is zero-padded to the next power of 2.
+     */
+    public int getTransformLength(int length) {
+        int cropped = Integer.highestOneBit(length);
+        if (cropped == length || 2L * cropped * cropped >= (long) length * length) {
+            return Math.max(2, cropped);
+        }
+        return cropped << 1;
+    }
+
+    /**
+     * Calculates the translation of the moving image relative to the
+     * reference image from the peak of their cross-correlation, in one step.
+     * Returns {dx, dy}: the moving image has to be shifted by dx pixels to the
+     * right and dy pixels down (left and up if negative) to be aligned.
+     */
+    public int[] findShift(ImageProcessor reference, ImageProcessor moving) {
+        int sizeX = getTransformLength(reference.getWidth());
+        int sizeY = getTransformLength(reference.getHeight());
+        int[] peak = findPeak(correlate(reference, moving, sizeX, sizeY), sizeX, sizeY);
+        int dx = peak[0] > sizeX / 2 ? peak[0] - sizeX : peak[0];
+        int dy = peak[1] > sizeY / 2 ? peak[1] - sizeY : peak[1];
+        return new int[]{dx, dy};
+    }
+
+    /**
+     * Calculates the translation like findShift, refined to a fraction of a
+     * pixel by fitting a parabola to the correlation peak and its two
+     * neighbours in each direction.
+     */
+    public double[] findSubPixelShift(ImageProcessor reference, ImageProcessor moving) {
+        int sizeX = getTransformLength(reference.getWidth());
+        int sizeY = getTransformLength(reference.getHeight());
+        float[] correlation = correlate(reference, moving, sizeX, sizeY);
+        int[] peak = findPeak(correlation, sizeX, sizeY);
+        int x = peak[0];
+        int y = peak[1];
+        int left = (x + sizeX - 1) % sizeX;
+        int right = (x + 1) % sizeX;
+        int up = (y + sizeY - 1) % sizeY;
+        int down = (y + 1) % sizeY;
+        double fractionX = parabolicPeak(correlation[y * sizeX + left], correlation[y * sizeX + x], correlation[y * sizeX + right]);
+        double fractionY = parabolicPeak(correlation[up * sizeX + x], correlation[y * sizeX + x], correlation[down * sizeX + x]);
+        double dx = (x > sizeX / 2 ? x - sizeX : x) + fractionX;
+        double dy = (y > sizeY / 2 ? y - sizeY : y) + fractionY;
+        return new double[]{dx, dy};
+    }
+
+    /**
+     * Returns the offset of the vertex of the parabola through (-1, before),
+     * (0, peak) and (1, after), within [-0.5, 0.5].
+     */
+    private static double parabolicPeak(double before, double peak, double after) {
+        double curvature = before - 2 * peak + after;
+        if (!(curvature < 0)) {
+            return 0;
+        }
+        double offset = 0.5 * (before - after) / curvature;
+        return Math.max(-0.5, Math.min(0.5, offset));
+    }
+
+    private float[] correlate(ImageProcessor reference, ImageProcessor moving, int sizeX, int sizeY) {
+        float[] referenceSpectrum = getReferenceSpectrum(reference, sizeX, sizeY);
+        float[] movingSpectrum = transform.forward(prepare(moving, sizeX, sizeY), sizeX, sizeY);
+        return transform.correlate(referenceSpectrum, movingSpectrum, sizeX, sizeY);
+    }
+
+    /**
+     * Returns the spectrum of the reference image, from the cache if its
+     * pixel array has been transformed before, with the same checksum, and
+     * not invalidated since.
+     */
+    private float[] getReferenceSpectrum(ImageProcessor reference, int sizeX, int sizeY) {
+        Object pixels = reference.getPixels();
+        long checksum = checksum((float[]) pixels);
+        synchronized (cache) {
+            Iterator<ReferenceSpectrum> it = cache.iterator();
+            while (it.hasNext()) {
+                ReferenceSpectrum spectrum = it.next();
+                Object cachedPixels = spectrum.pixels.get();
+                if (cachedPixels == null) {
+                    it.remove();
+                } else if (cachedPixels == pixels) {
+                    it.remove();
+                    if (spectrum.checksum == checksum && spectrum.width == reference.getWidth() && spectrum.height == reference.getHeight() && spectrum.sizeX == sizeX && spectrum.sizeY == sizeY) {
+                        cache.addFirst(spectrum);
+                        return spectrum.spectrum;
+                    }
+                    break;
+                }
+            }
+        }
+        float[] spectrum = transform.forward(prepare(reference, sizeX, sizeY), sizeX, sizeY);
+        synchronized (cache) {
+            cache.addFirst(new ReferenceSpectrum(pixels, checksum, reference.getWidth(), reference.getHeight(), sizeX, sizeY, spectrum));
+            if (cache.size() > CACHE_SIZE) {
+                cache.removeLast();
+            }
+        }
+        return spectrum;
+    }
+
+    /**
+     * Returns a checksum of the pixel values, which changes with any change
+     * of a pixel value or position.
+     */
+    private static long checksum(float[] pixels) {
+        long checksum = pixels.length;
+        for (float pixel : pixels) {
+            checksum = (checksum + Float.floatToRawIntBits(pixel)) * 0x9E3779B97F4A7C15L;
+        }
+        return checksum;
+    }
+
+    /**
+     * Removes the cached transform of the image. The steps which modify the
+     * pixels of an image used as reference in place (background subtraction,
+     * smoothing, thresholding) call it to free the transform at once; a
+     * modified reference is also detected by its checksum.
+     */
+    public void invalidate(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        synchronized (cache) {
+            Iterator<ReferenceSpectrum> it = cache.iterator();
+            while (it.hasNext()) {
+                Object cachedPixels = it.next().pixels.get();
+                if (cachedPixels == null || cachedPixels == pixels) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the downsampling factor of coarse-to-fine registration for
+     * images of the given size: 4 if a side is at least 4096 pixels, 2
+     * otherwise.
+     */
+    public int getCoarseFactor(int width, int height) {
+        return Math.max(width, height) >= 4096 ? 4 : 2;
+    }
+
+    /**
+     * Calculates the translation of the moving image relative to the
+     * reference image in two steps: the shift is estimated on copies of the
+     * images downsampled by the given factor, then refined by correlating
+     * a window of at most REFINE_SIZE x REFINE_SIZE pixels at full resolution,
+     * where the peak is only searched near the coarse estimate. Returns {dx,
+     * dy} as findShift, or as findSubPixelShift if subPixel is true.
+     *
+     * The duration of the registration and the estimated duration of a
+     * full-frame correlation are available after the call with
+     * getLastDuration and getLastFullFrameEstimate.
+     */
+    public double[] findShiftCoarseToFine(ImageProcessor reference, ImageProcessor moving, int factor, boolean subPixel) {
+        long start = System.nanoTime();
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        // coarse estimate
+        int coarseWidth = Math.max(2, width / factor);
+        int coarseHeight = Math.max(2, height / factor);
+        int coarseSizeX = getTransformLength(coarseWidth);
+        int coarseSizeY = getTransformLength(coarseHeight);
+        float[] coarseReference = downsample((float[]) reference.getPixels(), width, height, factor, coarseWidth, coarseHeight);
+        float[] coarseMoving = downsample((float[]) moving.getPixels(), width, height, factor, coarseWidth, coarseHeight);
+        int coarseRegionWidth = Math.min(coarseWidth, coarseSizeX);
+        int coarseRegionHeight = Math.min(coarseHeight, coarseSizeY);
+        int coarseX0 = (coarseWidth - coarseRegionWidth) / 2;
+        int coarseY0 = (coarseHeight - coarseRegionHeight) / 2;
+        float[] windowedReference = window(coarseReference, coarseWidth, coarseX0, coarseY0, coarseRegionWidth, coarseRegionHeight, coarseSizeX, coarseSizeY);
+        float[] windowedMoving = window(coarseMoving, coarseWidth, coarseX0, coarseY0, coarseRegionWidth, coarseRegionHeight, coarseSizeX, coarseSizeY);
+        long transformStart = System.nanoTime();
+        float[] coarseCorrelation = transform.correlate(transform.forward(windowedReference, coarseSizeX, coarseSizeY), transform.forward(windowedMoving, coarseSizeX, coarseSizeY), coarseSizeX, coarseSizeY);
+        long transformDuration = System.nanoTime() - transformStart;
+        int[] coarsePeak = findPeakNear(coarseCorrelation, coarseSizeX, coarseSizeY, coarseSizeX / 2, coarseSizeY / 2);
+        int coarseX = Math.max(-(width - 2), Math.min(width - 2, coarsePeak[0] * factor));
+        int coarseY = Math.max(-(height - 2), Math.min(height - 2, coarsePeak[1] * factor));
+        // refinement in a window of the overlapping part of the images
+        int size = Math.min(REFINE_SIZE, Integer.highestOneBit(Math.min(width - Math.abs(coarseX), height - Math.abs(coarseY))));
+        int x0 = Math.max(0, coarseX) + (width - Math.abs(coarseX) - size) / 2;
+        int y0 = Math.max(0, coarseY) + (height - Math.abs(coarseY) - size) / 2;
+        windowedReference = window((float[]) reference.getPixels(), width, x0, y0, size, size, size, size);
+        windowedMoving = window((float[]) moving.getPixels(), width, x0 - coarseX, y0 - coarseY, size, size, size, size);
+        transformStart = System.nanoTime();
+        float[] correlation = transform.correlate(transform.forward(windowedReference, size, size), transform.forward(windowedMoving, size, size), size, size);
+        transformDuration += System.nanoTime() - transformStart;
+        int radius = Math.min(size / 2, factor + 1);
+        int[] peak = findPeakNear(correlation, size, size, radius, radius);
+        double dx = coarseX + peak[0];
+        double dy = coarseY + peak[1];
+        if (subPixel) {
+            int px = (peak[0] + size) % size;
+            int py = (peak[1] + size) % size;
+            dx += parabolicPeak(correlation[py * size + (px + size - 1) % size], correlation[py * size + px], correlation[py * size + (px + 1) % size]);
+            dy += parabolicPeak(correlation[((py + size - 1) % size) * size + px], correlation[py * size + px], correlation[((py + 1) % size) * size + px]);
+        }
+        lastDuration = System.nanoTime() - start;
+        // a full-frame registration takes three transforms of the full size, whose cost grows as n log n
+        // with the number of pixels, plus one pass over the images to prepare them as done here
+        double cost = transformCost(coarseSizeX, coarseSizeY) + transformCost(size, size);
+        lastFullFrameEstimate = (long) (transformDuration * transformCost(getTransformLength(width), getTransformLength(height)) / cost + (lastDuration - transformDuration));
+        return new double[]{dx, dy};
+    }
+
+    /**
+     * Returns the duration of the last coarse-to-fine registration, in
+     * milliseconds.
+     */
+    public double getLastDuration() {
+        return lastDuration / 1e6;
+    }
+
+    /**
+     * Returns the estimated duration of a full-frame registration of the
+     * images of the last coarse-to-fine registration, in milliseconds. It is
+     * not measured, but extrapolated from the measured duration of the
+     * transforms by the n log n cost of the full size transforms.
+     */
+    public double getLastFullFrameEstimate() {
+        return lastFullFrameEstimate / 1e6;
+    }
+
+    private static double transformCost(int sizeX, int sizeY) {
+        return (double) sizeX * sizeY * Math.max(2, Integer.numberOfTrailingZeros(sizeX) + Integer.numberOfTrailingZeros(sizeY)) / 2;
+    }
+
+    /**
+     * Returns the image downsampled by averaging factor x factor blocks,
+     * skipping NaN pixels.
+     */
+    private static float[] downsample(float[] pixels, int width, int height, int factor, int coarseWidth, int coarseHeight) {
+        float[] coarse = new float[coarseWidth * coarseHeight];
+        double[] sums = new double[coarseWidth];
+        int[] counts = new int[coarseWidth];
+        for (int cy = 0; cy < coarseHeight; cy++) {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int y = cy * factor; y < Math.min(height, (cy + 1) * factor); y++) {
+                int offset = y * width;
+                for (int cx = 0, x = 0; cx < coarseWidth; cx++) {
+                    for (int end = Math.min(width, x + factor); x < end; x++) {
+                        float value = pixels[offset + x];
+                        if (value == value) {
+                            sums[cx] += value;
+                            counts[cx]++;
+                        }
+                    }
+                }
+            }
+            for (int cx = 0; cx < coarseWidth; cx++) {
+                coarse[cy * coarseWidth + cx] = counts[cx] > 0 ? (float) (sums[cx] / counts[cx]) : 0;
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * Returns the signed position {dx, dy} of the maximum of the correlation
+     * within the given distances from the origin.
+     */
+    private static int[] findPeakNear(float[] correlation, int sizeX, int sizeY, int radiusX, int radiusY) {
+        float maximum = Float.NEGATIVE_INFINITY;
+        int maxX = 0;
+        int maxY = 0;
+        for (int dy = -radiusY; dy <= radiusY && dy < sizeY - radiusY; dy++) {
+            int row = ((dy + sizeY) % sizeY) * sizeX;
+            for (int dx = -radiusX; dx <= radiusX && dx < sizeX - radiusX; dx++) {
+                float value = correlation[row + (dx + sizeX) % sizeX];
+                if (value > maximum) {
+                    maximum = value;
+                    maxX = dx;
+                    maxY = dy;
+                }
+            }
+        }
+        return new int[]{maxX, maxY};
+    }
+
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the image to be transformed. Images which already have the
+     * transform size are used as they are. Other images are cropped to their
+     * center or zero-padded, after subtracting their mean and applying a
+     * window that tapers their edges to 0, so that the borders of the image
+     * do not dominate the correlation.
+     */
+    private float[] prepare(ImageProcessor ip, int sizeX, int sizeY) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        if (width == sizeX && height == sizeY) {
+            return ((float[]) ip.getPixels()).clone();
+        }
+        int regionWidth = Math.min(width, sizeX);
+        int regionHeight = Math.min(height, sizeY);
+        return window((float[]) ip.getPixels(), width, (width - regionWidth) / 2, (height - regionHeight) / 2, regionWidth, regionHeight, sizeX, sizeY);
+    }
+
+    /**
+     * Returns the region of the image at (x0, y0) with its mean subtracted and
+     * its edges tapered to 0, in the top left corner of a sizeX x sizeY array.
+     */
+    private static float[] window(float[] pixels, int width, int x0, int y0, int regionWidth, int regionHeight, int sizeX, int sizeY) {
+        double sum = 0;
+        int count = 0;
+        for (int y = 0; y < regionHeight; y++) {
+            int offset = (y0 + y) * width + x0;
+            for (int x = 0; x < regionWidth; x++) {
+                float value = pixels[offset + x];
+                if (!Float.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+            }
+        }
+        float mean = count > 0 ? (float) (sum / count) : 0;
+        float[] windowX = window(regionWidth);
+        float[] windowY = window(regionHeight);
+        float[] prepared = new float[sizeX * sizeY];
+        for (int y = 0; y < regionHeight; y++) {
+            int offset = (y0 + y) * width + x0;
+            for (int x = 0; x < regionWidth; x++) {
+                float value = pixels[offset + x];
+                if (!Float.isNaN(value)) {
+                    prepared[y * sizeX + x] = (value - mean) * windowX[x] * windowY[y];
+                }
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * Returns a Tukey window: 1 in the middle, with cosine tapers over the
+     * first and last eighth of the length.
+     */
+    private static float[] window(int length) {
+        float[] window = new float[length];
+        int taper = Math.max(1, length / 8);
+        for (int i = 0; i < length; i++) {
+            int distance = Math.min(i, length - 1 - i);
+            window[i] = distance >= taper ? 1 : (float) (0.5 * (1 - Math.cos(Math.PI * (distance + 0.5) / taper)));
+        }
+        return window;
+    }
+
+    /**
+     * Returns the position of the maximum of the correlation, or (0, 0) if
+     * it has no positive value. The raw float bits are compared, and ties are
+     * resolved towards the lower x, then the lower y coordinate.
+     */
+    private int[] findPeak(float[] correlation, int width, int height) {
+        int maximum = 0;
+        int maxX = 0;
+        int maxY = 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int value = Float.floatToRawIntBits(correlation[offset + x]);
+                if (value > maximum || (value == maximum && maximum > 0 && x < maxX)) {
+                    maximum = value;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+        return new int[]{maxX, maxY};
+    }
+
+    private static class ReferenceSpectrum {
+
+        private final WeakReference<Object> pixels;
+        private final long checksum;
+        private final int width;
+        private final int height;
+        private final int sizeX;
+        private final int sizeY;
+        private final float[] spectrum;
+
+        ReferenceSpectrum(Object pixels, long checksum, int width, int height, int sizeX, int sizeY, float[] spectrum) {
+            this.pixels = new WeakReference<>(pixels);
+            this.checksum = checksum;
+            this.width = width;
+            this.height = height;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.spectrum = spectrum;
+        }
+    }
+}
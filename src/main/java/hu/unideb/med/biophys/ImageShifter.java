@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * Translates 32-bit images by whole pixels in place, or by fractions of a
+ * pixel with bilinear interpolation. The pixels shifted in from outside the
+ * image are set to 0.
+ */
+public class ImageShifter {
+
+    /**
+     * Shifts the images by dx pixels to the right and dy pixels down (left
+     * and up if negative), and redraws each of them once. Null images are
+     * skipped.
+     */
+    public static void shift(int dx, int dy, ImagePlus... images) {
+        shift(dx, dy, getProcessors(images));
+        redraw(images);
+    }
+
+    /**
+     * Shifts the images by a non-integer offset with bilinear interpolation,
+     * and redraws each of them once. Pixels which would need values from
+     * outside the image are set to 0. Null images are skipped.
+     */
+    public static void shift(double dx, double dy, ImagePlus... images) {
+        shift(dx, dy, getProcessors(images));
+        redraw(images);
+    }
+
+    /**
+     * Shifts the processors by whole pixels, like the ImagePlus variant,
+     * without redrawing. Null processors are skipped.
+     */
+    public static void shift(int dx, int dy, ImageProcessor... processors) {
+        for (ImageProcessor ip : processors) {
+            if (ip == null) {
+                continue;
+            }
+            shift((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), dx, dy);
+            ip.resetMinAndMax();
+        }
+    }
+
+    /**
+     * Shifts the processors with bilinear interpolation, like the ImagePlus
+     * variant, without redrawing. Null processors are skipped.
+     */
+    public static void shift(double dx, double dy, ImageProcessor... processors) {
+        float[] buffer = null;
+        for (ImageProcessor ip : processors) {
+            if (ip == null) {
+                continue;
+            }
+            float[] pixels = (float[]) ip.getPixels();
+            if (buffer == null || buffer.length != pixels.length) {
+                buffer = new float[pixels.length];
+            }
+            System.arraycopy(pixels, 0, buffer, 0, pixels.length);
+            shift(buffer, pixels, ip.getWidth(), ip.getHeight(), dx, dy);
+            ip.resetMinAndMax();
+        }
+    }
+
+    private static ImageProcessor[] getProcessors(ImagePlus[] images) {
+        ImageProcessor[] processors = new ImageProcessor[images.length];
+        for (int i = 0; i < images.length; i++) {
+            processors[i] = images[i] != null ? images[i].getProcessor() : null;
+        }
+        return processors;
+    }
+
+    private static void redraw(ImagePlus[] images) {
+        for (ImagePlus image : images) {
+            if (image != null) {
+                image.updateAndDraw();
+            }
+        }
+    }
+
+    /**
+     * Writes the source image shifted by (dx, dy) with bilinear interpolation
+     * to the destination array. Whole pixel offsets are copied exactly.
+     */
+    public static void shift(float[] source, float[] destination, int width, int height, double dx, double dy) {
+        int shiftX = (int) Math.floor(dx);
+        int shiftY = (int) Math.floor(dy);
+        float fractionX = (float) (dx - shiftX);
+        float fractionY = (float) (dy - shiftY);
+        if (fractionX == 0 && fractionY == 0) {
+            System.arraycopy(source, 0, destination, 0, source.length);
+            shift(destination, width, height, shiftX, shiftY);
+            return;
+        }
+        // destination (x, y) is interpolated from the source pixels (x - shiftX - 1 .. x - shiftX, y - shiftY - 1 .. y - shiftY);
+        // the left (upper) neighbour is not needed in the direction without a fraction
+        int left = fractionX > 0 ? 1 : 0;
+        int up = fractionY > 0 ? 1 : 0;
+        float w00 = fractionX * fractionY;
+        float w01 = (1 - fractionX) * fractionY;
+        float w10 = fractionX * (1 - fractionY);
+        float w11 = (1 - fractionX) * (1 - fractionY);
+        int fromX = Math.max(0, shiftX + left);
+        int toX = Math.min(width, width + shiftX);
+        int fromY = Math.max(0, shiftY + up);
+        int toY = Math.min(height, height + shiftY);
+        Arrays.fill(destination, 0);
+        for (int y = fromY; y < toY; y++) {
+            int row1 = (y - shiftY - up) * width - shiftX;
+            int row2 = (y - shiftY) * width - shiftX;
+            int offset = y * width;
+            for (int x = fromX; x < toX; x++) {
+                destination[offset + x] = w00 * source[row1 + x - left] + w01 * source[row1 + x] + w10 * source[row2 + x - left] + w11 * source[row2 + x];
+            }
+        }
+    }
+
+    /**
+     * Shifts the pixels of a width x height image in place, moving whole row
+     * segments with System.arraycopy.
+     */
+    public static void shift(float[] pixels, int width, int height, int dx, int dy) {
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+        if (Math.abs(dx) >= width || Math.abs(dy) >= height) {
+            Arrays.fill(pixels, 0);
+            return;
+        }
+        int length = width - Math.abs(dx);
+        int srcX = Math.max(0, -dx);
+        int dstX = Math.max(0, dx);
+        // the rows are visited so that every source row is read before it is overwritten
+        if (dy > 0) {
+            for (int y = height - 1; y >= dy; y--) {
+                moveRow(pixels, width, y - dy, y, srcX, dstX, length);
+            }
+            Arrays.fill(pixels, 0, dy * width, 0);
+        } else {
+            for (int y = 0; y < height + dy; y++) {
+                moveRow(pixels, width, y - dy, y, srcX, dstX, length);
+            }
+            Arrays.fill(pixels, (height + dy) * width, height * width, 0);
+        }
+    }
+
+    private static void moveRow(float[] pixels, int width, int srcY, int dstY, int srcX, int dstX, int length) {
+        int dst = dstY * width;
+        System.arraycopy(pixels, srcY * width + srcX, pixels, dst + dstX, length);
+        if (dstX > 0) {
+            Arrays.fill(pixels, dst, dst + dstX, 0);
+        } else {
+            Arrays.fill(pixels, dst + length, dst + width, 0);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registration transform using a radix-2 fast Fourier transform of real
+ * images, with the row and column passes split over the threads of a
+ * ParallelFretEngine.
+ *
+ * As the images are real, only the non-negative horizontal frequencies are
+ * stored: the spectrum of a width x height image holds height rows of
+ * width / 2 + 1 complex values, real parts first, then imaginary parts. Two
+ * image rows are transformed at once as the real and imaginary parts of one
+ * complex row.
+ */
+public class ParallelFftTransform implements RegistrationTransform {
+
+    /**
+     * The number of columns copied to a contiguous buffer and transformed
+     * together in the column pass.
+     */
+    private static final int COLUMN_BLOCK = 16;
+    private static final Map<Integer, Plan> PLANS = new HashMap<>();
+    private final ParallelFretEngine engine;
+
+    public ParallelFftTransform(ParallelFretEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public float[] forward(final float[] image, final int width, final int height) {
+        final Plan rowPlan = getPlan(width);
+        final int w = width / 2 + 1;
+        final float[] spectrum = new float[2 * height * w];
+        engine.forEachRowBand(2 * width, height / 2, (fromPair, toPair) -> {
+            float[] re = new float[width];
+            float[] im = new float[width];
+            for (int y = 2 * fromPair; y < 2 * toPair; y += 2) {
+                System.arraycopy(image, y * width, re, 0, width);
+                System.arraycopy(image, (y + 1) * width, im, 0, width);
+                rowPlan.transform(re, im, 0, false);
+                int first = y * w;
+                int second = (y + 1) * w;
+                int imOffset = height * w;
+                for (int k = 0; k < w; k++) {
+                    int k2 = (width - k) & (width - 1);
+                    spectrum[first + k] = 0.5f * (re[k] + re[k2]);
+                    spectrum[imOffset + first + k] = 0.5f * (im[k] - im[k2]);
+                    spectrum[second + k] = 0.5f * (im[k] + im[k2]);
+                    spectrum[imOffset + second + k] = -0.5f * (re[k] - re[k2]);
+                }
+            }
+        });
+        transformColumns(spectrum, width, height, false);
+        return spectrum;
+    }
+
+    @Override
+    public float[] correlate(final float[] referenceSpectrum, final float[] movingSpectrum, final int width, final int height) {
+        final Plan rowPlan = getPlan(width);
+        final int w = width / 2 + 1;
+        final int imOffset = height * w;
+        final float[] product = new float[2 * height * w];
+        engine.forEachRowBand(w, height, (fromRow, toRow) -> {
+            for (int i = fromRow * w; i < toRow * w; i++) {
+                float r1 = referenceSpectrum[i];
+                float i1 = referenceSpectrum[imOffset + i];
+                float r2 = movingSpectrum[i];
+                float i2 = movingSpectrum[imOffset + i];
+                product[i] = r1 * r2 + i1 * i2;
+                product[imOffset + i] = i1 * r2 - r1 * i2;
+            }
+        });
+        transformColumns(product, width, height, true);
+        final float[] correlation = new float[width * height];
+        final float scale = 1f / ((float) width * height);
+        engine.forEachRowBand(2 * width, height / 2, (fromPair, toPair) -> {
+            float[] re = new float[width];
+            float[] im = new float[width];
+            for (int y = 2 * fromPair; y < 2 * toPair; y += 2) {
+                int first = y * w;
+                int second = (y + 1) * w;
+                for (int k = 0; k < width; k++) {
+                    int j = k < w ? k : width - k;
+                    float sign = k < w ? 1 : -1;
+                    float xr = product[first + j];
+                    float xi = sign * product[imOffset + first + j];
+                    float yr = product[second + j];
+                    float yi = sign * product[imOffset + second + j];
+                    re[k] = xr - yi;
+                    im[k] = xi + yr;
+                }
+                rowPlan.transform(re, im, 0, true);
+                for (int x = 0; x < width; x++) {
+                    correlation[y * width + x] = re[x] * scale;
+                    correlation[(y + 1) * width + x] = im[x] * scale;
+                }
+            }
+        });
+        return correlation;
+    }
+
+    /**
+     * Transforms the columns of a half spectrum in place, in blocks of
+     * columns copied to a contiguous buffer.
+     */
+    private void transformColumns(final float[] spectrum, final int width, final int height, final boolean inverse) {
+        final Plan plan = getPlan(height);
+        final int w = width / 2 + 1;
+        final int imOffset = height * w;
+        int blocks = (w + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        engine.forEachRowBand(height * COLUMN_BLOCK, blocks, (fromBlock, toBlock) -> {
+            float[] re = new float[COLUMN_BLOCK * height];
+            float[] im = new float[COLUMN_BLOCK * height];
+            for (int block = fromBlock; block < toBlock; block++) {
+                int x0 = block * COLUMN_BLOCK;
+                int columns = Math.min(COLUMN_BLOCK, w - x0);
+                for (int y = 0; y < height; y++) {
+                    int row = y * w + x0;
+                    for (int c = 0; c < columns; c++) {
+                        re[c * height + y] = spectrum[row + c];
+                        im[c * height + y] = spectrum[imOffset + row + c];
+                    }
+                }
+                for (int c = 0; c < columns; c++) {
+                    plan.transform(re, im, c * height, inverse);
+                }
+                for (int y = 0; y < height; y++) {
+                    int row = y * w + x0;
+                    for (int c = 0; c < columns; c++) {
+                        spectrum[row + c] = re[c * height + y];
+                        spectrum[imOffset + row + c] = im[c * height + y];
+                    }
+                }
+            }
+        });
+    }
+
+    private static Plan getPlan(int size) {
+        synchronized (PLANS) {
+            Plan plan = PLANS.get(size);
+            if (plan == null) {
+                plan = new Plan(size);
+                PLANS.put(size, plan);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * The twiddle factors and the bit reversal permutation of one transform
+     * length, computed once and shared by all transforms of that length.
+     */
+    private static class Plan {
+
+        private final int n;
+        private final float[] cos;
+        private final float[] sin;
+        private final int[] bitReverse;
+
+        Plan(int n) {
+            this.n = n;
+            cos = new float[Math.max(1, n / 2)];
+            sin = new float[Math.max(1, n / 2)];
+            for (int k = 0; k < n / 2; k++) {
+                double angle = 2 * Math.PI * k / n;
+                cos[k] = (float) Math.cos(angle);
+                sin[k] = (float) Math.sin(angle);
+            }
+            bitReverse = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; i++) {
+                bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+
+        /**
+         * Transforms the n complex values starting at offset in place,
+         * without scaling. The forward transform uses exp(-2 pi i k x / n).
+         */
+        void transform(float[] re, float[] im, int offset, boolean inverse) {
+            for (int i = 0; i < n; i++) {
+                int j = bitReverse[i];
+                if (j > i) {
+                    float t = re[offset + i];
+                    re[offset + i] = re[offset + j];
+                    re[offset + j] = t;
+                    t = im[offset + i];
+                    im[offset + i] = im[offset + j];
+                    im[offset + j] = t;
+                }
+            }
+            float direction = inverse ? 1 : -1;
+            for (int length = 2; length <= n; length <<= 1) {
+                int half = length / 2;
+                int step = n / length;
+                for (int start = offset; start < offset + n; start += length) {
+                    for (int k = 0; k < half; k++) {
+                        float wr = cos[k * step];
+                        float wi = direction * sin[k * step];
+                        int a = start + k;
+                        int b = a + half;
+                        float tr = re[b] * wr - im[b] * wi;
+                        float ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-pixel image operations on a fork/join pool, splitting the images
+ * into bands of rows which are processed concurrently.
+ */
+public class ParallelFretEngine {
+
+    /**
+     * Images smaller than this (in pixels) are processed on the calling
+     * thread, as the fork/join overhead would outweigh the gain.
+     */
+    private static final int MIN_PARALLEL_PIXELS = 1 << 16;
+    private final int threads;
+    private ForkJoinPool pool;
+
+    public ParallelFretEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelFretEngine(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Processes a range of image rows, [fromRow, toRow).
+     */
+    public interface RowBand {
+
+        void process(int fromRow, int toRow);
+    }
+
+    /**
+     * Calls the given row band operation for every row of a width x height
+     * image, and returns when all rows are processed.
+     */
+    public void forEachRowBand(int width, int height, RowBand band) {
+        if (threads == 1 || (long) width * height < MIN_PARALLEL_PIXELS || height < 2) {
+            band.process(0, height);
+            return;
+        }
+        // a few bands per thread to balance the load
+        int rowsPerBand = Math.max(1, (height + threads * 4 - 1) / (threads * 4));
+        getPool().invoke(new RowBandTask(band, 0, height, rowsPerBand));
+    }
+
+    /**
+     * Calculates the transfer efficiency image with the given kernel.
+     */
+    public void compute(final FretKernel kernel, final float[] donorBefore, final float[] donorAfter, final float[] acceptorBefore, final float[] transfer, final int width, int height) {
+        forEachRowBand(width, height, (fromRow, toRow) -> kernel.compute(donorBefore, donorAfter, acceptorBefore, transfer, fromRow * width, toRow * width));
+    }
+
+    /**
+     * Runs the tasks concurrently, and returns when all of them are finished.
+     * An exception thrown by a task is rethrown.
+     */
+    public void runAll(List<Runnable> tasks) {
+        if (threads == 1 || tasks.size() < 2) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        List<Callable<Object>> callables = new ArrayList<>();
+        for (Runnable task : tasks) {
+            callables.add(Executors.callable(task));
+        }
+        try {
+            for (Future<Object> future : getPool().invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the processing threads.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    private static class RowBandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final RowBand band;
+        private final int fromRow;
+        private final int toRow;
+        private final int rowsPerBand;
+
+        RowBandTask(RowBand band, int fromRow, int toRow, int rowsPerBand) {
+            this.band = band;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= rowsPerBand) {
+                band.process(fromRow, toRow);
+            } else {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new RowBandTask(band, fromRow, middle, rowsPerBand), new RowBandTask(band, middle, toRow, rowsPerBand));
+            }
+        }
+    }
+}
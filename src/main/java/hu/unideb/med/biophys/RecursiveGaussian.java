@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.Arrays;
+
+/**
+ * Recursive (IIR) approximation of the Gaussian blur, after Young and van
+ * Vliet (Signal Processing 44, 1995), with the boundary handling of Triggs
+ * and Sdika (IEEE Trans. Signal Processing 54, 2006). Every line is filtered
+ * by a third order causal and anti-causal filter pair, so the cost per pixel
+ * does not depend on sigma. Pixels outside the image are taken to be equal
+ * to the nearest edge pixel, as in ImageJ's GaussianBlur.
+ *
+ * Compared to GaussianBlur with accuracy 0.01, the largest difference is
+ * about 6% of the image range (RMS 3%) on pixel noise for sigma below 1.5,
+ * where the approximation has too wide tails. For larger sigma the largest
+ * difference is below 3% of the range, at sharp edges and on structures a
+ * few sigma wide, and the RMS difference is below 1.2%. The approximation
+ * is not valid for sigma below 0.5. A NaN pixel makes its whole row NaN in the
+ * horizontal pass, and so the whole image NaN in the vertical pass, as the
+ * filters never forget an input value.
+ */
+public class RecursiveGaussian {
+
+    /**
+     * The number of columns filtered together in the vertical pass, so that
+     * whole cache lines are used when reading the image.
+     */
+    private static final int COLUMN_BLOCK = 16;
+    private final double b;
+    private final double a1;
+    private final double a2;
+    private final double a3;
+    private final double[][] boundary;
+
+    public RecursiveGaussian(double sigma) {
+        if (sigma < 0.5) {
+            throw new IllegalArgumentException("Sigma has to be at least 0.5 for the recursive Gaussian blur.");
+        }
+        double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 : 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q * q + 0.422205 * q * q * q;
+        a1 = (2.44413 * q + 2.85619 * q * q + 1.26661 * q * q * q) / b0;
+        a2 = -(1.4281 * q * q + 1.26661 * q * q * q) / b0;
+        a3 = 0.422205 * q * q * q / b0;
+        b = 1 - (a1 + a2 + a3);
+        boundary = boundaryMatrix();
+    }
+
+    /**
+     * Returns the matrix mapping the deviations of the last three outputs of
+     * the causal filter from the edge value to the deviations of the initial
+     * values of the anti-causal filter. Instead of the closed form of Triggs
+     * and Sdika, it is computed by running the filters on each unit
+     * deviation until the response decays.
+     */
+    private double[][] boundaryMatrix() {
+        int length = 64;
+        double[] w = new double[length + 3];
+        double[] y = new double[length + 6];
+        while (true) {
+            double[][] matrix = new double[3][3];
+            double tail = 0;
+            for (int j = 0; j < 3; j++) {
+                Arrays.fill(w, 0);
+                Arrays.fill(y, 0);
+                w[2 - j] = 1;
+                for (int n = 3; n < length + 3; n++) {
+                    w[n] = a1 * w[n - 1] + a2 * w[n - 2] + a3 * w[n - 3];
+                }
+                tail = Math.max(tail, Math.abs(w[length + 2]));
+                for (int n = length + 2; n >= 3; n--) {
+                    y[n] = b * w[n] + a1 * y[n + 1] + a2 * y[n + 2] + a3 * y[n + 3];
+                }
+                for (int k = 0; k < 3; k++) {
+                    matrix[k][j] = y[3 + k];
+                }
+            }
+            if (tail < 1e-9) {
+                return matrix;
+            }
+            length *= 2;
+            w = new double[length + 3];
+            y = new double[length + 6];
+        }
+    }
+
+    /**
+     * Blurs the width x height image in place, splitting the rows and then
+     * the columns over the threads of the engine.
+     */
+    public void blur(final float[] pixels, final int width, final int height, ParallelFretEngine engine) {
+        engine.forEachRowBand(width, height, (fromRow, toRow) -> {
+            double[] line = new double[width];
+            double[] work = new double[width];
+            for (int y = fromRow; y < toRow; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    line[x] = pixels[offset + x];
+                }
+                filter(line, work, width);
+                for (int x = 0; x < width; x++) {
+                    pixels[offset + x] = (float) line[x];
+                }
+            }
+        });
+        int blocks = (width + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        engine.forEachRowBand(height * COLUMN_BLOCK, blocks, (fromBlock, toBlock) -> {
+            double[] lines = new double[COLUMN_BLOCK * height];
+            double[] line = new double[height];
+            double[] work = new double[height];
+            for (int block = fromBlock; block < toBlock; block++) {
+                int x0 = block * COLUMN_BLOCK;
+                int columns = Math.min(COLUMN_BLOCK, width - x0);
+                for (int y = 0; y < height; y++) {
+                    int offset = y * width + x0;
+                    for (int c = 0; c < columns; c++) {
+                        lines[c * height + y] = pixels[offset + c];
+                    }
+                }
+                for (int c = 0; c < columns; c++) {
+                    System.arraycopy(lines, c * height, line, 0, height);
+                    filter(line, work, height);
+                    System.arraycopy(line, 0, lines, c * height, height);
+                }
+                for (int y = 0; y < height; y++) {
+                    int offset = y * width + x0;
+                    for (int c = 0; c < columns; c++) {
+                        pixels[offset + c] = (float) lines[c * height + y];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Filters a line of n values in place, using work as the buffer of the
+     * causal pass.
+     */
+    private void filter(double[] line, double[] work, int n) {
+        // causal pass, the edge value is repeated before the line
+        double first = line[0];
+        double w1 = first;
+        double w2 = first;
+        double w3 = first;
+        for (int i = 0; i < n; i++) {
+            double w = b * line[i] + a1 * w1 + a2 * w2 + a3 * w3;
+            work[i] = w;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+        }
+        // anti-causal pass, started from the exact response to the repeated edge value after the line
+        double last = line[n - 1];
+        double d0 = work[n - 1] - last;
+        double d1 = (n > 1 ? work[n - 2] : first) - last;
+        double d2 = (n > 2 ? work[n - 3] : first) - last;
+        double y1 = last + boundary[0][0] * d0 + boundary[0][1] * d1 + boundary[0][2] * d2;
+        double y2 = last + boundary[1][0] * d0 + boundary[1][1] * d1 + boundary[1][2] * d2;
+        double y3 = last + boundary[2][0] * d0 + boundary[2][1] * d1 + boundary[2][2] * d2;
+        for (int i = n - 1; i >= 0; i--) {
+            double y = b * work[i] + a1 * y1 + a2 * y2 + a3 * y3;
+            line[i] = y;
+            y3 = y2;
+            y2 = y1;
+            y1 = y;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+/**
+ * The Fourier-type transform used to calculate the cross-correlation of two
+ * images for registration. The width and height of the images are powers
+ * of 2, not necessarily equal.
+ */
+public interface RegistrationTransform {
+
+    /**
+     * Returns the spectrum of the width x height image. The image is not
+     * modified. The format of the spectrum depends on the implementation.
+     */
+    float[] forward(float[] image, int width, int height);
+
+    /**
+     * Returns the width x height circular cross-correlation image of the two
+     * images whose spectra are given. The spectra are not modified.
+     */
+    float[] correlate(float[] referenceSpectrum, float[] movingSpectrum, int width, int height);
+}
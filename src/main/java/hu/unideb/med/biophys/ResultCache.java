@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.Prefs;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A persistent cache of the results rows of processed files, addressed by
+ * the SHA-256 hash of the file content and the parameters. A file which
+ * has been processed with the same parameters before, under any name or
+ * path, is found by hashing its bytes, without opening it as an image.
+ *
+ * The content hashes are remembered by the absolute path, length and
+ * modification time of the files, so an unchanged file is only hashed once,
+ * and a file missing from the cache is read twice only the first time.
+ *
+ * Every row is kept in its own small file, in subdirectories named after
+ * the first two digits of the key, next to the remembered hashes. The files
+ * are written to a temporary file and moved to their place, atomically
+ * where the file system supports it, so concurrent or interrupted writes do
+ * not leave partial rows behind.
+ */
+public class ResultCache {
+
+    /**
+     * Hashed with every key. It has to be changed when the processing or
+     * the results row changes, so that the earlier rows are not used.
+     */
+    private static final String VERSION = "AccPbFRET result cache 3";
+    private static final String ROW_SUFFIX = ".txt";
+    private static final String HASH_SUFFIX = ".sha";
+    private final Path directory;
+    private IOException writeError;
+
+    public ResultCache(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    /**
+     * Returns the cache directory in the ImageJ preferences directory.
+     */
+    public static File getDefaultDirectory() {
+        return new File(Prefs.getPrefsDir(), "AccPbFRET_cache");
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * Returns the key of the file processed with the parameters, the hash of
+     * the file content and the parameters as hexadecimal digits. Throws
+     * UncheckedIOException if the file can not be read.
+     */
+    public String getKey(File file, FretParameters parameters) {
+        MessageDigest digest = createDigest();
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update(parameters.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(getContentHash(file).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the hash of the file content as hexadecimal digits. The hash
+     * remembered with the path, length and modification time of the file is
+     * returned without reading it; otherwise the file is hashed, and the
+     * hash is remembered if the file did not change meanwhile.
+     */
+    private String getContentHash(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        try {
+            String stat = getStat(path);
+            Path memo = getPath(toHex(createDigest().digest(stat.getBytes(StandardCharsets.UTF_8))), HASH_SUFFIX);
+            if (Files.isRegularFile(memo)) {
+                try {
+                    String hash = new String(Files.readAllBytes(memo), StandardCharsets.UTF_8).trim();
+                    if (hash.matches("[0-9a-f]{64}")) {
+                        return hash;
+                    }
+                } catch (IOException ex) {
+                    // hashed again below
+                }
+            }
+            MessageDigest digest = createDigest();
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = Files.newInputStream(path)) {
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            String hash = toHex(digest.digest());
+            if (stat.equals(getStat(path))) {
+                write(memo, hash + "\n");
+            }
+            return hash;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read " + file + ".", ex);
+        }
+    }
+
+    /**
+     * Returns the results row stored with the key, or null if there is none
+     * or it can not be read.
+     */
+    public double[] get(String key) {
+        Path path = getPath(key, ROW_SUFFIX);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try {
+            String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split("\t");
+            if (fields.length != BatchProcessor.RESULT_HEADINGS.length) {
+                return null;
+            }
+            double[] values = new double[fields.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.parseDouble(fields[i]);
+            }
+            return values;
+        } catch (IOException | NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the results row with the key. The first write error is kept
+     * (see getWriteError), and nothing is written after it.
+     */
+    public void put(String key, double[] values) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            text.append(i > 0 ? "\t" : "").append(values[i]);
+        }
+        text.append('\n');
+        write(getPath(key, ROW_SUFFIX), text.toString());
+    }
+
+    /**
+     * Writes the text to a temporary file and moves it to the path. The
+     * first write error is kept, and nothing is written after it.
+     */
+    private void write(Path path, String text) {
+        synchronized (this) {
+            if (writeError != null) {
+                return;
+            }
+        }
+        try {
+            Files.createDirectories(path.getParent());
+            Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, text.getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException ex) {
+            synchronized (this) {
+                writeError = ex;
+            }
+        }
+    }
+
+    /**
+     * Returns the error which stopped writing the cache, or null.
+     */
+    public synchronized IOException getWriteError() {
+        return writeError;
+    }
+
+    /**
+     * Deletes every stored row and remembered hash, and returns the number
+     * of rows. Throws
+     * UncheckedIOException if a row can not be deleted.
+     */
+    public int clear() {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory)) {
+            for (Path subdirectory : subdirectories) {
+                if (!Files.isDirectory(subdirectory) || subdirectory.getFileName().toString().length() != 2) {
+                    continue;
+                }
+                try (DirectoryStream<Path> rows = Files.newDirectoryStream(subdirectory)) {
+                    for (Path row : rows) {
+                        Files.delete(row);
+                        if (row.getFileName().toString().endsWith(ROW_SUFFIX)) {
+                            deleted++;
+                        }
+                    }
+                }
+                Files.delete(subdirectory);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not clear the result cache " + directory + ".", ex);
+        }
+        return deleted;
+    }
+
+    private Path getPath(String key, String suffix) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + suffix);
+    }
+
+    private static String getStat(Path path) throws IOException {
+        return path + "\t" + Files.size(path) + "\t" + Files.getLastModifiedTime(path).toMillis();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A ROI rasterized into the pixel spans it covers in an image, so that loops
+ * over the ROI only visit its bounding box and the covered part of each row.
+ *
+ * Masks are cached per ROI instance, so the ROI copied to the donor and
+ * acceptor images is only rasterized once.
+ */
+public class RoiMask {
+
+    private static final int CACHE_SIZE = 8;
+    private static final LinkedList<RoiMask> CACHE = new LinkedList<>();
+    private final Roi roi;
+    private final int type;
+    private final Rectangle roiBounds;
+    private final int polygonHash;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final Rectangle bounds;
+    private final int[] rowIndex;
+    private final int[] spans;
+    private final int pixelCount;
+
+    private RoiMask(Roi roi, int imageWidth, int imageHeight) {
+        this.roi = roi;
+        this.type = roi.getType();
+        this.roiBounds = roi.getBounds();
+        this.polygonHash = polygonHash(roi);
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        bounds = roiBounds.intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+        if (bounds.isEmpty()) {
+            bounds.width = 0;
+            bounds.height = 0;
+        }
+        ImageProcessor mask = roi.isArea() ? roi.getMask() : null;
+        rowIndex = new int[bounds.height + 1];
+        int[] spanBuffer = new int[16];
+        int spanCount = 0;
+        int count = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int start = -1;
+            for (int x = bounds.x; x <= bounds.x + bounds.width; x++) {
+                boolean inside = x < bounds.x + bounds.width && contains(roi, mask, x, y);
+                if (inside && start < 0) {
+                    start = x;
+                } else if (!inside && start >= 0) {
+                    if (2 * spanCount + 2 > spanBuffer.length) {
+                        spanBuffer = Arrays.copyOf(spanBuffer, spanBuffer.length * 2);
+                    }
+                    spanBuffer[2 * spanCount] = start;
+                    spanBuffer[2 * spanCount + 1] = x;
+                    spanCount++;
+                    count += x - start;
+                    start = -1;
+                }
+            }
+            rowIndex[y - bounds.y + 1] = spanCount;
+        }
+        spans = Arrays.copyOf(spanBuffer, 2 * spanCount);
+        pixelCount = count;
+    }
+
+    private boolean contains(Roi roi, ImageProcessor mask, int x, int y) {
+        if (mask != null) {
+            return mask.get(x - roiBounds.x, y - roiBounds.y) != 0;
+        }
+        return roi.isArea() || roi.contains(x, y);
+    }
+
+    /**
+     * Returns the mask of the ROI in an image of the given size, rasterizing
+     * it only if it is not in the cache yet, or if the ROI has changed.
+     */
+    public static RoiMask get(Roi roi, int imageWidth, int imageHeight) {
+        synchronized (CACHE) {
+            Iterator<RoiMask> it = CACHE.iterator();
+            while (it.hasNext()) {
+                RoiMask mask = it.next();
+                if (mask.roi == roi) {
+                    it.remove();
+                    if (mask.matches(roi, imageWidth, imageHeight)) {
+                        CACHE.addFirst(mask);
+                        return mask;
+                    }
+                    break;
+                }
+            }
+        }
+        RoiMask mask = new RoiMask(roi, imageWidth, imageHeight);
+        synchronized (CACHE) {
+            CACHE.addFirst(mask);
+            if (CACHE.size() > CACHE_SIZE) {
+                CACHE.removeLast();
+            }
+        }
+        return mask;
+    }
+
+    private boolean matches(Roi roi, int imageWidth, int imageHeight) {
+        return this.imageWidth == imageWidth && this.imageHeight == imageHeight && type == roi.getType() && roiBounds.equals(roi.getBounds()) && polygonHash == polygonHash(roi);
+    }
+
+    private static int polygonHash(Roi roi) {
+        FloatPolygon polygon = roi.getFloatPolygon();
+        if (polygon == null) {
+            return 0;
+        }
+        return 31 * Arrays.hashCode(Arrays.copyOf(polygon.xpoints, polygon.npoints)) + Arrays.hashCode(Arrays.copyOf(polygon.ypoints, polygon.npoints));
+    }
+
+    /**
+     * Returns the bounding box of the mask, clipped to the image.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the number of image pixels inside the ROI.
+     */
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * Returns the index of the first span of row y in getSpans(); the spans
+     * of the row end at getFirstSpan(y + 1). Rows outside the bounding box
+     * have no spans.
+     */
+    public int getFirstSpan(int y) {
+        if (y < bounds.y) {
+            return 0;
+        }
+        if (y >= bounds.y + bounds.height) {
+            return rowIndex[bounds.height];
+        }
+        return rowIndex[y - bounds.y];
+    }
+
+    /**
+     * Returns the spans of the mask as [startX, endX) pairs, row by row.
+     * The returned array must not be modified.
+     */
+    public int[] getSpans() {
+        return spans;
+    }
+
+    public boolean contains(int x, int y) {
+        if (!bounds.contains(x, y)) {
+            return false;
+        }
+        for (int s = getFirstSpan(y); s < getFirstSpan(y + 1); s++) {
+            if (x >= spans[2 * s] && x < spans[2 * s + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the sum of the pixels inside the ROI.
+     */
+    public double sum(float[] pixels) {
+        double sum = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int s = getFirstSpan(y); s < getFirstSpan(y + 1); s++) {
+                for (int i = y * imageWidth + spans[2 * s], end = y * imageWidth + spans[2 * s + 1]; i < end; i++) {
+                    sum += pixels[i];
+                }
+            }
+        }
+        return sum;
+    }
+}
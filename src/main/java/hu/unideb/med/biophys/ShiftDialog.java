@@ -24,13 +24,11 @@ package hu.unideb.med.biophys;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.process.FloatProcessor;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.ColorModel;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
@@ -147,90 +145,18 @@ public class ShiftDialog extends JDialog implements ActionListener {
     }
 
     public void shiftUp(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height - value; j++) {
-                fpPixels2[i][j] = fpPixels[width * (j + value) + i];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        ImageShifter.shift(0, -value, image);
     }
 
     public void shiftDown(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = value; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * (j - value) + i];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        ImageShifter.shift(0, value, image);
     }
 
     public void shiftLeft(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width - value; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * j + (i + value)];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        ImageShifter.shift(-value, 0, image);
     }
 
     public void shiftRight(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = value; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * j + (i - value)];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        ImageShifter.shift(value, 0, image);
     }
 }
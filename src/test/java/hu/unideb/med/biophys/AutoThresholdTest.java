@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.process.AutoThresholder;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the thresholds of AutoThreshold on a bimodal image, the accuracy
+ * of the percentile threshold, and the images which are not thresholded.
+ */
+public class AutoThresholdTest {
+
+    @Test
+    public void testBimodal() {
+        ParallelFretEngine engine = new ParallelFretEngine(3);
+        try {
+            AutoThreshold threshold = new AutoThreshold(engine);
+            for (int method : new int[]{AutoThreshold.OTSU, AutoThreshold.LI, AutoThreshold.TRIANGLE}) {
+                float[] pixels = createBimodal(200, 150, method);
+                float[] original = pixels.clone();
+                float level = threshold.apply(pixels, 200, 150, method, 0);
+                String name = AutoThreshold.METHOD_NAMES[method];
+                assertTrue(name + " threshold " + level, level > 130 && level < 400);
+                for (int i = 0; i < pixels.length; i++) {
+                    assertEquals(name + " pixel " + i, original[i] < level ? Float.NaN : original[i], pixels[i], 0);
+                }
+                // the level of ImageJ's AutoThresholder for the same histogram
+                assertEquals(name, expectedThreshold(original, method), level, 0);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testPercentileExact() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            AutoThreshold threshold = new AutoThreshold(engine);
+            // most values fall into the lowest 1/256 of the range, because of a few bright outliers
+            Random random = new Random(3);
+            float[] pixels = new float[300 * 200];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt(500) == 0 ? 1e5f + random.nextFloat() * 1e5f : 10 + random.nextFloat() * 90;
+            }
+            pixels[7] = Float.NaN;
+            for (double percentile : new double[]{0, 1, 25, 50, 99.5, 100}) {
+                float[] thresholded = pixels.clone();
+                threshold.apply(thresholded, 300, 200, AutoThreshold.PERCENTILE, percentile);
+                int removed = countNaN(thresholded);
+                int notNaN = pixels.length - 1;
+                int expected = (int) Math.min(notNaN - 1, Math.ceil(notNaN * percentile / 100));
+                assertEquals(percentile + "%", expected, removed - 1);
+            }
+            // ties at the threshold are kept
+            float[] ties = new float[100];
+            for (int i = 0; i < ties.length; i++) {
+                ties[i] = i < 40 ? 1 : i < 80 ? 2 : 3;
+            }
+            assertEquals(2, threshold.apply(ties, 10, 10, AutoThreshold.PERCENTILE, 50), 0);
+            assertEquals(40, countNaN(ties));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotThresholded() {
+        ParallelFretEngine engine = new ParallelFretEngine(1);
+        try {
+            AutoThreshold threshold = new AutoThreshold(engine);
+            float[] pixels = createBimodal(20, 10, 1);
+            float[] original = pixels.clone();
+            assertEquals(Float.NaN, threshold.apply(pixels, 20, 10, AutoThreshold.NONE, 50), 0);
+            assertArrayEquals(original, pixels, 0);
+            float[] constant = new float[64];
+            Arrays.fill(constant, 5);
+            constant[3] = Float.NaN;
+            float[] constantOriginal = constant.clone();
+            for (int method = AutoThreshold.OTSU; method <= AutoThreshold.PERCENTILE; method++) {
+                assertEquals(Float.NaN, threshold.apply(constant, 8, 8, method, 50), 0);
+                assertArrayEquals(constantOriginal, constant, 0);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Returns an image with a dim background around 100 and bright spots
+     * around 500, on a quarter of the pixels.
+     */
+    private static float[] createBimodal(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (float) (random.nextInt(4) == 0 ? 500 + 30 * random.nextGaussian() : 100 + 10 * random.nextGaussian());
+        }
+        return pixels;
+    }
+
+    private static float expectedThreshold(float[] pixels, int method) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float value : pixels) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        int[] histogram = new int[256];
+        for (float value : pixels) {
+            histogram[Math.min(255, (int) ((value - min) * (256 / ((double) max - min))))]++;
+        }
+        AutoThresholder.Method[] methods = {null, AutoThresholder.Method.Otsu, AutoThresholder.Method.Li, AutoThresholder.Method.Triangle};
+        int level = new AutoThresholder().getThreshold(methods[method], histogram);
+        return (float) (min + (level + 1) * ((double) max - min) / 256);
+    }
+
+    private static int countNaN(float[] pixels) {
+        int count = 0;
+        for (float value : pixels) {
+            if (Float.isNaN(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
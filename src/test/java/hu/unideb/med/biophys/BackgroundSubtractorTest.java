@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares BackgroundSubtractor with the average over Roi.contains and
+ * ImageProcessor.subtract, followed by ImageProcessor.min(0) when clamping,
+ * as the plugin did before, both inline and split into row bands.
+ */
+public class BackgroundSubtractorTest {
+
+    @Test
+    public void testNotClamped() {
+        for (int threads : new int[]{1, 4}) {
+            assertSameAsImageJ(threads, false, new OvalRoi(10, 5, 40, 30), 97, 61);
+            assertSameAsImageJ(threads, false, new Roi(0, 0, 97, 61), 97, 61);
+        }
+    }
+
+    @Test
+    public void testClamped() {
+        for (int threads : new int[]{1, 4}) {
+            assertSameAsImageJ(threads, true, new OvalRoi(10, 5, 40, 30), 97, 61);
+            assertSameAsImageJ(threads, true, new PolygonRoi(new int[]{2, 90, 60, 10}, new int[]{3, 8, 55, 40}, 4, Roi.POLYGON), 97, 61);
+        }
+    }
+
+    @Test
+    public void testFewerRowsThanThreads() {
+        assertSameAsImageJ(8, true, new Roi(1, 0, 5, 3), 7, 3);
+        assertSameAsImageJ(8, false, new Roi(1, 0, 5, 3), 7, 3);
+    }
+
+    private static void assertSameAsImageJ(int threads, boolean clamp, Roi roi, int width, int height) {
+        FloatProcessor[] processors = new FloatProcessor[3];
+        FloatProcessor[] expected = new FloatProcessor[processors.length];
+        for (int c = 0; c < processors.length; c++) {
+            processors[c] = createImage(width, height, 31 * threads + c);
+            expected[c] = (FloatProcessor) processors[c].duplicate();
+        }
+        ParallelFretEngine engine = new ParallelFretEngine(threads);
+        float[] averages;
+        try {
+            averages = new BackgroundSubtractor(engine, clamp).subtract(roi, processors);
+        } finally {
+            engine.shutdown();
+        }
+        for (int c = 0; c < processors.length; c++) {
+            float average = average(expected[c], roi);
+            assertEquals(average, averages[c], Math.abs(average) * 1e-6);
+            expected[c].subtract(averages[c]);
+            if (clamp) {
+                // ImageJ's min(value) raises the pixels below value to it
+                expected[c].min(0);
+            }
+            assertArrayEquals((float[]) expected[c].getPixels(), (float[]) processors[c].getPixels(), 0);
+        }
+    }
+
+    private static float average(ImageProcessor ip, Roi roi) {
+        double sum = 0;
+        int count = 0;
+        for (int x = 0; x < ip.getWidth(); x++) {
+            for (int y = 0; y < ip.getHeight(); y++) {
+                if (roi.contains(x, y)) {
+                    sum += ip.getPixelValue(x, y);
+                    count++;
+                }
+            }
+        }
+        return (float) (sum / count);
+    }
+
+    private static FloatProcessor createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 100 + 50 * (float) random.nextGaussian();
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+}
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that BatchJournal reads back the files it recorded, and ignores
+ * the ones cut off, modified or recorded with other parameters.
+ */
+public class BatchJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndReopen() throws IOException {
+        File directory = folder.newFolder("batch");
+        File file = createFile(directory, "image.lsm");
+        FretParameters parameters = new FretParameters();
+        BatchJournal journal = BatchJournal.open(directory);
+        assertNull(journal.getValues(file, parameters));
+        journal.record(file, parameters, createValues(1));
+        assertArrayEquals(createValues(1), journal.getValues(file, parameters), 0);
+        BatchJournal reopened = BatchJournal.open(directory);
+        assertNull(reopened.getWriteError());
+        assertEquals(1, reopened.size());
+        assertArrayEquals(createValues(1), reopened.getValues(file, parameters), 0);
+    }
+
+    @Test
+    public void testTruncatedLastLine() throws IOException {
+        File directory = folder.newFolder("batch");
+        File first = createFile(directory, "first.lsm");
+        File second = createFile(directory, "second.lsm");
+        File third = createFile(directory, "third.lsm");
+        FretParameters parameters = new FretParameters();
+        BatchJournal journal = BatchJournal.open(directory);
+        journal.record(first, parameters, createValues(1));
+        journal.record(second, parameters, createValues(2));
+        // a crash while the second line was written
+        byte[] text = Files.readAllBytes(journal.getFile().toPath());
+        Files.write(journal.getFile().toPath(), Arrays.copyOf(text, text.length - 10));
+        BatchJournal reopened = BatchJournal.open(directory);
+        assertEquals(1, reopened.size());
+        assertArrayEquals(createValues(1), reopened.getValues(first, parameters), 0);
+        assertNull(reopened.getValues(second, parameters));
+        // the next line starts on a line of its own
+        reopened.record(third, parameters, createValues(3));
+        List<String> lines = Files.readAllLines(journal.getFile().toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.get(lines.size() - 1).startsWith("third.lsm\t"));
+        BatchJournal repaired = BatchJournal.open(directory);
+        assertEquals(2, repaired.size());
+        assertNull(repaired.getValues(second, parameters));
+        assertArrayEquals(createValues(3), repaired.getValues(third, parameters), 0);
+    }
+
+    @Test
+    public void testEscapedNames() throws IOException {
+        File directory = folder.newFolder("batch");
+        File file = createFile(directory, "tab\tand\\backslash.lsm");
+        File plain = createFile(directory, "tab\\tand\\backslash.lsm");
+        FretParameters parameters = new FretParameters();
+        BatchJournal.open(directory).record(file, parameters, createValues(1));
+        String text = new String(Files.readAllBytes(new File(directory, BatchJournal.FILE_NAME).toPath()), StandardCharsets.UTF_8);
+        assertTrue(text.contains("tab\\tand\\\\backslash.lsm\t"));
+        BatchJournal reopened = BatchJournal.open(directory);
+        assertArrayEquals(createValues(1), reopened.getValues(file, parameters), 0);
+        assertNull(reopened.getValues(plain, parameters));
+    }
+
+    @Test
+    public void testParametersAndModification() throws IOException {
+        File directory = folder.newFolder("batch");
+        File file = createFile(directory, "image.czi");
+        File touched = createFile(directory, "touched.czi");
+        File changed = createFile(directory, "changed.czi");
+        FretParameters parameters = new FretParameters();
+        BatchJournal journal = BatchJournal.open(directory);
+        for (File recorded : new File[]{file, touched, changed}) {
+            journal.record(recorded, parameters, createValues(1));
+        }
+        assertTrue(touched.setLastModified(touched.lastModified() + 2000));
+        long lastModified = changed.lastModified();
+        Files.write(changed.toPath(), new byte[]{1}, StandardOpenOption.APPEND);
+        assertTrue(changed.setLastModified(lastModified));
+        BatchJournal reopened = BatchJournal.open(directory);
+        assertArrayEquals(createValues(1), reopened.getValues(file, parameters), 0);
+        assertNull(reopened.getValues(file, parameters.withAcceptorAsMask(!parameters.isUseAcceptorAsMask())));
+        assertNull(reopened.getValues(touched, parameters));
+        assertNull(reopened.getValues(changed, parameters));
+    }
+
+    @Test
+    public void testSubdirectories() throws IOException {
+        File directory = folder.newFolder("batch");
+        File inner = new File(directory, "day1/cell2");
+        assertTrue(inner.mkdirs());
+        File nested = createFile(inner, "image.lsm");
+        File top = createFile(directory, "image.lsm");
+        FretParameters parameters = new FretParameters();
+        BatchJournal.open(directory).record(nested, parameters, createValues(1));
+        String text = new String(Files.readAllBytes(new File(directory, BatchJournal.FILE_NAME).toPath()), StandardCharsets.UTF_8);
+        assertTrue(text.contains("\nday1/cell2/image.lsm\t"));
+        BatchJournal reopened = BatchJournal.open(directory);
+        assertArrayEquals(createValues(1), reopened.getValues(nested, parameters), 0);
+        assertNull(reopened.getValues(top, parameters));
+    }
+
+    private static File createFile(File directory, String name) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static double[] createValues(int seed) {
+        double[] values = new double[BatchProcessor.RESULT_HEADINGS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = seed * 100 + i * 0.125;
+        }
+        values[3] = Double.NaN;
+        return values;
+    }
+}
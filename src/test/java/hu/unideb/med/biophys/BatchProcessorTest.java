@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the order of the results of BatchProcessor, the order in which the
+ * files are started, the errors of single files and the use of the journal
+ * and the result cache.
+ */
+public class BatchProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResultsInGivenOrder() throws IOException {
+        List<File> files = Arrays.asList(createFile("b.tif", 48, 1), createFile("a.tif", 96, 2), createFile("c.tif", 64, 3));
+        List<BatchProcessor.FileResult> results = new BatchProcessor(new FretParameters(), 3).process(files, null);
+        assertEquals(files.size(), results.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i), results.get(i).getFile());
+            assertNull(results.get(i).getError(), results.get(i).getError());
+            assertEquals(BatchProcessor.PROCESSED, results.get(i).getSource());
+        }
+    }
+
+    @Test
+    public void testLargerFilesFirst() throws IOException {
+        List<File> files = Arrays.asList(createFile("small.tif", 32, 1), createFile("large.tif", 128, 2), createFile("medium.tif", 64, 3));
+        final List<File> finished = Collections.synchronizedList(new ArrayList<File>());
+        new BatchProcessor(new FretParameters(), 1).process(files, (result, count, total) -> {
+            finished.add(result.getFile());
+            assertEquals(3, total);
+        });
+        // a single worker finishes the files in the order they are started
+        assertEquals(Arrays.asList(files.get(1), files.get(2), files.get(0)), finished);
+    }
+
+    @Test
+    public void testErrorOfSingleFile() throws IOException {
+        File broken = folder.newFile("broken.tif");
+        Files.write(broken.toPath(), "not an image".getBytes("UTF-8"));
+        List<File> files = Arrays.asList(createFile("first.tif", 48, 1), broken, createFile("last.tif", 48, 2));
+        List<BatchProcessor.FileResult> results = new BatchProcessor(new FretParameters(), 2).process(files, null);
+        assertNull(results.get(0).getError());
+        assertNotNull(results.get(1).getError());
+        assertNull(results.get(1).getValues());
+        assertNull(results.get(2).getError());
+    }
+
+    @Test
+    public void testJournalAndCache() throws IOException {
+        File directory = folder.newFolder("images");
+        File broken = new File(directory, "broken.tif");
+        Files.write(broken.toPath(), "not an image".getBytes("UTF-8"));
+        List<File> files = Arrays.asList(createFile("images/one.tif", 48, 1), broken, createFile("images/two.tif", 64, 2));
+        FretParameters parameters = new FretParameters();
+        ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        List<BatchProcessor.FileResult> first = new BatchProcessor(parameters, 2, BatchJournal.open(directory), cache).process(files, null);
+        assertSources(first, BatchProcessor.PROCESSED, BatchProcessor.PROCESSED, BatchProcessor.PROCESSED);
+        assertTrue(first.get(0).getValues()[1] > 0);
+        // resumed: the finished files are taken from the journal, the failed one is tried again
+        List<BatchProcessor.FileResult> resumed = new BatchProcessor(parameters, 2, BatchJournal.open(directory), cache).process(files, null);
+        assertSources(resumed, BatchProcessor.FROM_JOURNAL, BatchProcessor.PROCESSED, BatchProcessor.FROM_JOURNAL);
+        assertNotNull(resumed.get(1).getError());
+        // a new batch of copies of the files: the results are taken from the cache
+        File copies = folder.newFolder("copies");
+        List<File> copiedFiles = new ArrayList<>();
+        for (File file : files) {
+            File copy = new File(copies, file.getName());
+            Files.copy(file.toPath(), copy.toPath());
+            copiedFiles.add(copy);
+        }
+        List<BatchProcessor.FileResult> cached = new BatchProcessor(parameters, 2, BatchJournal.open(copies), cache).process(copiedFiles, null);
+        assertSources(cached, BatchProcessor.FROM_CACHE, BatchProcessor.PROCESSED, BatchProcessor.FROM_CACHE);
+        for (int i : new int[]{0, 2}) {
+            assertArrayEquals(first.get(i).getValues(), resumed.get(i).getValues(), 0);
+            assertArrayEquals(first.get(i).getValues(), cached.get(i).getValues(), 0);
+        }
+        // other parameters: processed again
+        FretParameters other = parameters.withAcceptorAsMask(!parameters.isUseAcceptorAsMask());
+        List<BatchProcessor.FileResult> changed = new BatchProcessor(other, 2, BatchJournal.open(directory), cache).process(files, null);
+        assertSources(changed, BatchProcessor.PROCESSED, BatchProcessor.PROCESSED, BatchProcessor.PROCESSED);
+    }
+
+    private static void assertSources(List<BatchProcessor.FileResult> results, int... sources) {
+        for (int i = 0; i < sources.length; i++) {
+            assertEquals("source of " + results.get(i).getFile().getName(), sources[i], results.get(i).getSource());
+        }
+    }
+
+    /**
+     * Writes a TIFF stack of the donor and acceptor channels before and
+     * after bleaching (in channel, then time order), with a shifted donor
+     * after image.
+     */
+    private File createFile(String name, int size, long seed) throws IOException {
+        FloatProcessor donorBefore = ImageRegistrationTest.createImage(size, size, seed);
+        FloatProcessor acceptorBefore = ImageRegistrationTest.createImage(size, size, seed + 100);
+        FloatProcessor donorAfter = ImageRegistrationTest.shiftCircular(donorBefore, 2, -1);
+        donorAfter.multiply(1.3);
+        FloatProcessor acceptorAfter = (FloatProcessor) acceptorBefore.duplicate();
+        acceptorAfter.multiply(0.2);
+        ImageStack stack = new ImageStack(size, size);
+        stack.addSlice(donorBefore);
+        stack.addSlice(acceptorBefore);
+        stack.addSlice(donorAfter);
+        stack.addSlice(acceptorAfter);
+        File file = new File(folder.getRoot(), name);
+        if (!new FileSaver(new ImagePlus(name, stack)).saveAsTiffStack(file.getPath())) {
+            throw new IOException("Could not write " + file + ".");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks which blur ChannelSmoother uses for images with and without NaN
+ * pixels.
+ */
+public class ChannelSmootherTest {
+
+    @Test
+    public void testRecursiveWithoutNaN() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            float[] image = createImage(45, 31, 0);
+            FloatProcessor ip = new FloatProcessor(45, 31, image.clone());
+            new ChannelSmoother(engine, true, false).smooth(new ImageProcessor[]{ip}, new double[]{2});
+            float[] expected = image.clone();
+            new RecursiveGaussian(2).blur(expected, 45, 31, engine);
+            assertArrayEquals(expected, (float[]) ip.getPixels(), 0);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecursiveFallsBackToGaussianBlurWithNaN() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            float[] image = createImage(45, 31, 0.02);
+            FloatProcessor ip = new FloatProcessor(45, 31, image.clone());
+            FloatProcessor other = new FloatProcessor(45, 31, createImage(45, 31, 0));
+            new ChannelSmoother(engine, true, false).smooth(new ImageProcessor[]{ip, other}, new double[]{2, 2});
+            FloatProcessor expected = new FloatProcessor(45, 31, image.clone());
+            new GaussianBlur().blurGaussian(expected, 2, 2, 0.01);
+            assertArrayEquals((float[]) expected.getPixels(), (float[]) ip.getPixels(), 0);
+            int valid = 0;
+            for (float value : (float[]) ip.getPixels()) {
+                if (!Float.isNaN(value)) {
+                    valid++;
+                }
+            }
+            assertFalse("NaN spread over the whole image", valid == 0);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    private static float[] createImage(int width, int height, double nanFraction) {
+        Random random = new Random(width * height);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextDouble() < nanFraction ? Float.NaN : 100 + random.nextFloat() * 50;
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares ChannelStatistics with ImageStatistics and with the pixel
+ * counting loops of the plugin it replaced.
+ */
+public class ChannelStatisticsTest {
+
+    @Test
+    public void testWholeImage() {
+        assertSameAsImageJ(createImage(37, 23, 1), null);
+    }
+
+    @Test
+    public void testRectangle() {
+        assertSameAsImageJ(createImage(64, 48, 2), new Roi(5, 7, 31, 20));
+    }
+
+    @Test
+    public void testOval() {
+        assertSameAsImageJ(createImage(64, 48, 3), new OvalRoi(3, 4, 41, 33));
+    }
+
+    @Test
+    public void testPolygon() {
+        Roi roi = new PolygonRoi(new int[]{2, 50, 60, 10}, new int[]{3, 8, 45, 30}, 4, Roi.POLYGON);
+        assertSameAsImageJ(createImage(64, 48, 4), roi);
+    }
+
+    @Test
+    public void testMedianEvenCount() {
+        FloatProcessor ip = createImage(20, 10, 8);
+        float[] pixels = (float[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (float) Math.sin(i);
+        }
+        assertSameAsImageJ(ip, null);
+        assertSameAsImageJ(ip, new Roi(1, 1, 7, 4));
+    }
+
+    @Test
+    public void testMedianOddCount() {
+        FloatProcessor ip = createImage(21, 11, 9);
+        float[] pixels = (float[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (float) Math.cos(i);
+        }
+        assertSameAsImageJ(ip, null);
+    }
+
+    @Test
+    public void testMedianTies() {
+        FloatProcessor ip = createImage(101, 99, 10);
+        float[] pixels = (float[]) ip.getPixels();
+        Random random = new Random(10);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(3) / 2f;
+        }
+        assertSameAsImageJ(ip, null);
+        assertSameAsImageJ(ip, new Roi(0, 0, 100, 99));
+        assertSameAsImageJ(ip, new OvalRoi(10, 10, 60, 51));
+    }
+
+    @Test
+    public void testMedianConstant() {
+        FloatProcessor ip = new FloatProcessor(30, 20);
+        ip.add(0.25);
+        assertSameAsImageJ(ip, null);
+    }
+
+    @Test
+    public void testMedianNarrowPeakWithOutliers() {
+        // most values fall into a single bin of the first histogram, so it is refined
+        FloatProcessor ip = createImage(400, 300, 11);
+        float[] pixels = (float[]) ip.getPixels();
+        Random random = new Random(11);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(1000) == 0 ? 1e6f * random.nextFloat() : 0.3f + 1e-3f * (float) random.nextGaussian();
+        }
+        assertSameAsImageJ(ip, null);
+        assertSameAsImageJ(ip, new Roi(0, 0, 400, 299));
+    }
+
+    @Test
+    public void testMedianWideSpread() {
+        // values spread over many orders of magnitude, needing the direct selection after the last pass
+        FloatProcessor ip = createImage(512, 257, 12);
+        float[] pixels = (float[]) ip.getPixels();
+        Random random = new Random(12);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (float) Math.exp(30 * random.nextGaussian());
+        }
+        assertSameAsImageJ(ip, null);
+        assertSameAsImageJ(ip, new OvalRoi(0, 0, 511, 256));
+    }
+
+    @Test
+    public void testNoMeasuredPixels() {
+        FloatProcessor ip = new FloatProcessor(8, 8);
+        ip.add(Float.NaN);
+        ChannelStatistics stats = ChannelStatistics.measure(new ImageProcessor[]{ip}, new boolean[]{true}, null)[0];
+        assertEquals(0, stats.getPixelCount());
+        assertEquals(Double.NaN, stats.getMedian(), 0);
+        assertEquals(0, stats.getNotNaNCount());
+    }
+
+    @Test
+    public void testSeveralChannels() {
+        FloatProcessor[] processors = {createImage(40, 30, 5), createImage(40, 30, 6), createImage(40, 30, 7)};
+        // measured in the bounding rectangle of the ROI and counted inside it, as FretPipeline.measure does
+        Roi roi = new OvalRoi(6, 2, 25, 21);
+        for (FloatProcessor ip : processors) {
+            ip.setRoi(roi.getBounds());
+        }
+        ChannelStatistics[] stats = ChannelStatistics.measure(processors, new boolean[]{true, false, true}, roi);
+        for (int c = 0; c < processors.length; c++) {
+            ImageStatistics expected = ImageStatistics.getStatistics(processors[c], Measurements.MEAN | Measurements.STD_DEV | Measurements.MIN_MAX, null);
+            assertEquals(expected.pixelCount, stats[c].getPixelCount());
+            assertEquals(expected.mean, stats[c].getMean(), 1e-9 * Math.abs(expected.mean));
+            assertEquals(expected.stdDev, stats[c].getStdDev(), 1e-9 * expected.stdDev);
+            assertEquals(expected.min, stats[c].getMin(), 0);
+            assertEquals(expected.max, stats[c].getMax(), 0);
+        }
+        int inside = 0;
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                if (roi.contains(x, y)) {
+                    inside++;
+                }
+            }
+        }
+        assertEquals(inside, stats[0].getRoiPixelCount());
+    }
+
+    /**
+     * Returns an image with random values around 0.3, like a transfer image,
+     * with some NaN pixels and pixels below -1.
+     */
+    static FloatProcessor createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            int kind = random.nextInt(25);
+            pixels[i] = kind == 0 ? Float.NaN : kind == 1 ? -1.5f - random.nextFloat() : (float) (0.3 + 0.2 * random.nextGaussian());
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    static void assertSameAsImageJ(FloatProcessor ip, Roi roi) {
+        if (roi != null) {
+            ip.setRoi(roi);
+        } else {
+            ip.resetRoi();
+        }
+        ChannelStatistics stats = ChannelStatistics.measure(new ImageProcessor[]{ip}, new boolean[]{true}, roi)[0];
+        ImageStatistics expected = ImageStatistics.getStatistics(ip, Measurements.MEAN | Measurements.MEDIAN | Measurements.STD_DEV | Measurements.MIN_MAX, null);
+        assertEquals("pixel count", expected.pixelCount, stats.getPixelCount());
+        assertEquals("mean", expected.mean, stats.getMean(), 1e-9 * Math.abs(expected.mean));
+        assertEquals("median", expected.median, stats.getMedian(), 0);
+        assertEquals("std. dev.", expected.stdDev, stats.getStdDev(), 1e-9 * expected.stdDev);
+        assertEquals("min", expected.min, stats.getMin(), 0);
+        assertEquals("max", expected.max, stats.getMax(), 0);
+        // the counting loops of the plugin before ChannelStatistics
+        int count = 0;
+        int notNaN = 0;
+        for (int x = 0; x < ip.getWidth(); x++) {
+            for (int y = 0; y < ip.getHeight(); y++) {
+                if (roi == null || roi.contains(x, y)) {
+                    count++;
+                    if (ip.getPixelValue(x, y) >= -1) {
+                        notNaN++;
+                    }
+                }
+            }
+        }
+        assertEquals("ROI pixels", count, stats.getRoiPixelCount());
+        assertEquals("not NaN pixels", notNaN, stats.getNotNaNCount());
+    }
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the order of the files enumerated by DirectoryScanner and their
+ * names relative to the root directory.
+ */
+public class DirectoryScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecursiveOrderAndRelativeNames() throws IOException {
+        File root = folder.getRoot();
+        create(root, "b.lsm", "a.czi", "notes.txt", "sub2/c.lsm", "sub1/d.LSM", "sub1/deeper/e.czi");
+        DirectoryScanner scanner = new DirectoryScanner(root, true);
+        assertEquals(Arrays.asList("a.czi", "b.lsm", "sub1/d.LSM", "sub1/deeper/e.czi", "sub2/c.lsm"), getRelativeNames(scanner));
+    }
+
+    @Test
+    public void testWithoutSubdirectories() throws IOException {
+        File root = folder.getRoot();
+        create(root, "b.lsm", "a.czi", "sub1/d.lsm");
+        assertEquals(Arrays.asList("a.czi", "b.lsm"), getRelativeNames(new DirectoryScanner(root, false)));
+    }
+
+    private static void create(File root, String... names) throws IOException {
+        for (String name : names) {
+            File file = new File(root, name);
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+    }
+
+    private static List<String> getRelativeNames(DirectoryScanner scanner) {
+        List<String> names = new ArrayList<>();
+        for (File file : scanner) {
+            names.add(scanner.getRelativeName(file).replace(File.separatorChar, '/'));
+        }
+        return names;
+    }
+}
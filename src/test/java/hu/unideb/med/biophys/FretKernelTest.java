@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares FretKernel with the loops of createFretImage it replaced, for
+ * every combination of the corrections.
+ */
+public class FretKernelTest {
+
+    private static final float DONOR_BL_CORR = 1.15f;
+    private static final float ACCEPTOR_CT_CORR = 0.07f;
+    private static final float ACCEPTOR_PP_CORR = 0.03f;
+    private static final float PARTIAL_BL_CORR = 0.2f;
+
+    @Test
+    public void testAllCorrectionsBitIdentical() {
+        int width = 37;
+        int height = 29;
+        float[][] images = createImages(width * height, 1);
+        for (int flags = 0; flags < 32; flags++) {
+            FretKernel kernel = createKernel(flags);
+            float[] transfer = new float[width * height];
+            kernel.compute(images[0], images[1], images[2], transfer);
+            assertBitIdentical("corrections " + Integer.toBinaryString(flags), reference(images[0], images[1], images[2], width, height, flags), transfer);
+        }
+    }
+
+    @Test
+    public void testRangesAcrossChunks() {
+        int width = 61;
+        int height = 53;
+        float[][] images = createImages(width * height, 3);
+        int[] bounds = {0, 1, 1023, 1024, 1025, 2047, 2100, width * height};
+        for (int flags = 0; flags < 32; flags++) {
+            FretKernel kernel = createKernel(flags);
+            float[] transfer = new float[width * height];
+            for (int b = 0; b < bounds.length - 1; b++) {
+                kernel.compute(images[0], images[1], images[2], transfer, bounds[b], bounds[b + 1]);
+            }
+            assertBitIdentical("corrections " + Integer.toBinaryString(flags), reference(images[0], images[1], images[2], width, height, flags), transfer);
+        }
+    }
+
+    @Test
+    public void testParallelEngineBitIdentical() {
+        // large enough to be split into row bands, with an odd number of rows
+        int width = 301;
+        int height = 257;
+        float[][] images = createImages(width * height, 4);
+        ParallelFretEngine engine = new ParallelFretEngine(4);
+        try {
+            for (int flags : new int[]{0, 7, 16, 31}) {
+                float[] transfer = new float[width * height];
+                engine.compute(createKernel(flags), images[0], images[1], images[2], transfer, width, height);
+                assertBitIdentical("corrections " + Integer.toBinaryString(flags), reference(images[0], images[1], images[2], width, height, flags), transfer);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testSourcesNotModified() {
+        float[][] images = createImages(1000, 2);
+        float[][] copies = {images[0].clone(), images[1].clone(), images[2].clone()};
+        createKernel(31).compute(images[0], images[1], images[2], new float[1000]);
+        for (int c = 0; c < 3; c++) {
+            assertBitIdentical("image " + c, copies[c], images[c]);
+        }
+    }
+
+    static FretKernel createKernel(int flags) {
+        return new FretKernel((flags & 1) != 0, (flags & 1) != 0 ? DONOR_BL_CORR : 1, (flags & 2) != 0, (flags & 2) != 0 ? ACCEPTOR_CT_CORR : 0,
+                (flags & 4) != 0, (flags & 4) != 0 ? ACCEPTOR_PP_CORR : 0, (flags & 8) != 0, (flags & 8) != 0 ? PARTIAL_BL_CORR : 0, (flags & 16) != 0);
+    }
+
+    /**
+     * Returns donor before, donor after and acceptor before images with
+     * random intensities, and some NaN and 0 pixels.
+     */
+    static float[][] createImages(int length, long seed) {
+        Random random = new Random(seed);
+        float[][] images = new float[3][length];
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < length; i++) {
+                int kind = random.nextInt(20);
+                images[c][i] = kind == 0 ? Float.NaN : kind == 1 ? 0 : random.nextFloat() * 4000;
+            }
+        }
+        return images;
+    }
+
+    static void assertBitIdentical(String message, float[] expected, float[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (Float.floatToIntBits(expected[i]) != Float.floatToIntBits(actual[i])) {
+                assertEquals(message + ", pixel " + i, expected[i], actual[i], 0);
+            }
+        }
+    }
+
+    /**
+     * The calculation of createFretImage before FretKernel, on flat arrays.
+     */
+    static float[] reference(float[] db, float[] da, float[] ab, int width, int height, int flags) {
+        boolean donorBlCorrection = (flags & 1) != 0;
+        boolean accCrossTalkCorrection = (flags & 2) != 0;
+        boolean accPhotoprCorrection = (flags & 4) != 0;
+        boolean partialBlCorrection = (flags & 8) != 0;
+        boolean useAcceptorAsMask = (flags & 16) != 0;
+        float donorBlCorr = donorBlCorrection ? DONOR_BL_CORR : 1;
+        float acceptorCTCorr = accCrossTalkCorrection ? ACCEPTOR_CT_CORR : 0;
+        float acceptorPPCorr = accPhotoprCorrection ? ACCEPTOR_PP_CORR : 0;
+        float partialBlCorr = partialBlCorrection ? PARTIAL_BL_CORR : 0;
+        float[] ipDBP = db.clone();
+        float[] ipDAP = da.clone();
+        float[] ipABP = ab.clone();
+        if (!partialBlCorrection) {
+            if (accCrossTalkCorrection) {
+                for (int i = 0; i < ipABP.length; i++) {
+                    if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
+                        ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
+                    } else {
+                        ipDBP[i] = Float.NaN;
+                    }
+                }
+            }
+            if (accPhotoprCorrection) {
+                for (int i = 0; i < ipABP.length; i++) {
+                    if (!Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
+                        ipDAP[i] = ipDAP[i] - ipABP[i] * acceptorPPCorr;
+                    } else {
+                        ipDAP[i] = Float.NaN;
+                    }
+                }
+            }
+            if (donorBlCorrection) {
+                for (int i = 0; i < ipDAP.length; i++) {
+                    if (!Float.isNaN(ipDAP[i])) {
+                        ipDAP[i] = ipDAP[i] * donorBlCorr;
+                    } else {
+                        ipDAP[i] = Float.NaN;
+                    }
+                }
+            }
+            for (int i = 0; i < ipDAP.length; i++) {
+                ipDAP[i] = 1 - (ipDBP[i] / ipDAP[i]);
+            }
+        } else {
+            if (accCrossTalkCorrection) {
+                for (int i = 0; i < ipABP.length; i++) {
+                    if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
+                        ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
+                    } else {
+                        ipDBP[i] = Float.NaN;
+                    }
+                }
+            }
+            for (int i = 0; i < ipDBP.length; i++) {
+                if (accCrossTalkCorrection || accPhotoprCorrection) {
+                    if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
+                        ipDAP[i] = (float) (donorBlCorr * (ipDAP[i] - ((double) partialBlCorr * (double) acceptorCTCorr + acceptorPPCorr * ((double) 1 - (double) partialBlCorr)) * ipABP[i]) - (double) partialBlCorr * (double) ipDBP[i]);
+                    } else {
+                        ipDAP[i] = Float.NaN;
+                    }
+                } else {
+                    if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i])) {
+                        ipDAP[i] = (float) ((double) donorBlCorr * (double) ipDAP[i] - (double) partialBlCorr * (double) ipDBP[i]);
+                    } else {
+                        ipDAP[i] = Float.NaN;
+                    }
+                }
+            }
+            for (int i = 0; i < ipDAP.length; i++) {
+                ipDAP[i] = (float) (1 - (((double) 1 - (double) partialBlCorr) * ipDBP[i] / ipDAP[i]));
+            }
+        }
+        float[] transfer = new float[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                transfer[width * y + x] = ipDAP[width * y + x];
+                if (useAcceptorAsMask && (Float.isNaN(ipABP[width * y + x]) || ipABP[width * y + x] == 0)) {
+                    transfer[width * y + x] = Float.NaN;
+                }
+            }
+        }
+        return transfer;
+    }
+}
@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import org.junit.Test;
+
+/**
+ * Checks the measurement of FretPipeline with a non-rectangular ROI and its
+ * requirement of 32-bit channels.
+ */
+public class FretPipelineTest {
+
+    @Test
+    public void testMeasureOvalBounds() {
+        int width = 45;
+        int height = 33;
+        FloatProcessor donorBefore = ChannelStatisticsTest.createImage(width, height, 21);
+        FloatProcessor donorAfter = ChannelStatisticsTest.createImage(width, height, 22);
+        FloatProcessor transfer = ChannelStatisticsTest.createImage(width, height, 23);
+        FretPipeline pipeline = new FretPipeline(new FretParameters(), null, new ImageRegistration());
+        pipeline.setChannels(donorBefore, donorAfter, null, null);
+        Roi roi = new OvalRoi(4, 3, 30, 25);
+        ChannelStatistics[] stats = pipeline.measure(transfer, roi);
+        // the statistics are taken in the bounding rectangle, the pixels are counted inside the oval
+        ImageProcessor[] processors = {transfer, donorBefore, donorAfter};
+        for (int i = 0; i < processors.length; i++) {
+            ImageProcessor ip = processors[i].duplicate();
+            ip.setRoi(roi.getBounds());
+            ImageStatistics expected = ImageStatistics.getStatistics(ip, Measurements.MEAN | Measurements.STD_DEV | Measurements.MIN_MAX, null);
+            assertEquals("pixels of image " + i, expected.pixelCount, stats[i].getPixelCount());
+            assertEquals("mean of image " + i, expected.mean, stats[i].getMean(), 1e-9);
+            assertEquals("standard deviation of image " + i, expected.stdDev, stats[i].getStdDev(), 1e-9);
+            assertEquals("minimum of image " + i, expected.min, stats[i].getMin(), 0);
+            assertEquals("maximum of image " + i, expected.max, stats[i].getMax(), 0);
+        }
+        int inside = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (roi.contains(x, y)) {
+                    inside++;
+                }
+            }
+        }
+        assertEquals(inside, stats[0].getRoiPixelCount());
+        assertEquals(30 * 25, stats[0].getPixelCount() + countNotMeasured(transfer, roi.getBounds()));
+    }
+
+    private static int countNotMeasured(ImageProcessor ip, Rectangle r) {
+        int count = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = r.x; x < r.x + r.width; x++) {
+                if (Float.isNaN(ip.getPixelValue(x, y))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNon32BitChannelRejected() {
+        FretPipeline pipeline = new FretPipeline(new FretParameters(), null, new ImageRegistration());
+        pipeline.setChannel(FretPipeline.DONOR_BEFORE, new ShortProcessor(8, 8));
+    }
+}
@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares ImageRegistration with the registration of the bleaching
+ * correction dialog it replaced, which searched the peak of the FHT
+ * cross-correlation of the images.
+ */
+public class ImageRegistrationTest {
+
+    private static final int[][] SHIFTS = {{0, 0}, {3, 0}, {0, -3}, {-3, 5}, {7, -11}, {-20, -9}, {31, 2}};
+
+    @Test
+    public void testSameShiftAsFhtPeakSearch() {
+        for (int size : new int[]{16, 64, 128}) {
+            FloatProcessor reference = createImage(size, size, size);
+            for (int[] shift : SHIFTS) {
+                if (Math.abs(shift[0]) >= size / 2 || Math.abs(shift[1]) >= size / 2) {
+                    continue;
+                }
+                FloatProcessor moving = shiftCircular(reference, -shift[0], -shift[1]);
+                addNoise(moving, size + shift[0]);
+                int[] expected = reference(reference, moving);
+                String message = size + "x" + size + " shifted by " + shift[0] + ", " + shift[1];
+                assertArrayEquals(message, shift, expected);
+                assertArrayEquals(message, expected, new ImageRegistration().findShift(reference, moving));
+            }
+        }
+    }
+
+    @Test
+    public void testCachedReferenceSameShift() {
+        ImageRegistration registration = new ImageRegistration();
+        FloatProcessor reference = createImage(64, 64, 5);
+        for (int[] shift : SHIFTS) {
+            FloatProcessor moving = shiftCircular(reference, -shift[0], -shift[1]);
+            assertArrayEquals(reference(reference, moving), registration.findShift(reference, moving));
+        }
+    }
+
+    @Test
+    public void testModifiedReference() {
+        final int[] transforms = new int[1];
+        final FhtTransform fht = new FhtTransform();
+        ImageRegistration registration = new ImageRegistration(new RegistrationTransform() {
+            @Override
+            public float[] forward(float[] image, int width, int height) {
+                transforms[0]++;
+                return fht.forward(image, width, height);
+            }
+
+            @Override
+            public float[] correlate(float[] referenceSpectrum, float[] movingSpectrum, int width, int height) {
+                return fht.correlate(referenceSpectrum, movingSpectrum, width, height);
+            }
+        });
+        FloatProcessor reference = createImage(64, 64, 7);
+        FloatProcessor moving = shiftCircular(reference, 4, -6);
+        assertArrayEquals(new int[]{-4, 6}, registration.findShift(reference, moving));
+        assertArrayEquals(new int[]{-4, 6}, registration.findShift(reference, moving));
+        // the reference and the moving image, but not the unchanged reference again
+        assertEquals(3, transforms[0]);
+        // the reference is modified in place, without invalidate
+        float[] pixels = (float[]) reference.getPixels();
+        System.arraycopy(shiftCircular(reference, 4, -6).getPixels(), 0, pixels, 0, pixels.length);
+        assertArrayEquals(new int[]{0, 0}, registration.findShift(reference, moving));
+        // a single pixel
+        pixels[pixels.length / 2] += 1000;
+        int before = transforms[0];
+        registration.findShift(reference, moving);
+        assertEquals(before + 2, transforms[0]);
+        registration.invalidate(reference);
+        registration.findShift(reference, moving);
+        assertEquals(before + 4, transforms[0]);
+    }
+
+    @Test
+    public void testTransformLength() {
+        ImageRegistration registration = new ImageRegistration();
+        assertEquals(2, registration.getTransformLength(2));
+        assertEquals(4, registration.getTransformLength(3));
+        assertEquals(1024, registration.getTransformLength(1024));
+        assertEquals(1024, registration.getTransformLength(1000));
+        assertEquals(2048, registration.getTransformLength(1912));
+        assertEquals(4096, registration.getTransformLength(4096));
+        assertEquals(4096, registration.getTransformLength(5000));
+    }
+
+    @Test
+    public void testRectangularAndOddSizes() {
+        ParallelFretEngine engine = new ParallelFretEngine(4);
+        try {
+            ImageRegistration registration = new ImageRegistration(new ParallelFftTransform(engine));
+            int[][] sizes = {{1912, 1912}, {4096, 1000}, {300, 1100}, {1000, 300}, {512, 200}};
+            int[][] shifts = {{13, -7}, {-6, 11}};
+            for (int[] size : sizes) {
+                // the images are windows of a larger image, so that no content wraps around
+                FloatProcessor scene = createImage(size[0] + 40, size[1] + 40, size[0] + size[1]);
+                FloatProcessor reference = crop(scene, 20, 20, size[0], size[1]);
+                for (int[] shift : shifts) {
+                    FloatProcessor moving = crop(scene, 20 + shift[0], 20 + shift[1], size[0], size[1]);
+                    addNoise(moving, size[0] * size[1] + shift[0]);
+                    String message = size[0] + "x" + size[1] + " shifted by " + shift[0] + ", " + shift[1];
+                    assertArrayEquals(message, shift, registration.findShift(reference, moving));
+                    // cropping an axis biases the fraction towards 0, but not by half a pixel
+                    double[] subPixel = registration.findSubPixelShift(reference, moving);
+                    assertEquals(message, shift[0], subPixel[0], 0.45);
+                    assertEquals(message, shift[1], subPixel[1], 0.45);
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoarseToFine() {
+        ParallelFretEngine engine = new ParallelFretEngine(4);
+        try {
+            ImageRegistration registration = new ImageRegistration(new ParallelFftTransform(engine));
+            // a side of 4096 pixels is downsampled by 4, smaller images by 2
+            int[][] sizes = {{4096, 1024}, {1000, 800}};
+            int[] factors = {4, 2};
+            int[][] shifts = {{0, 0}, {17, -9}, {-30, 21}, {3, 5}};
+            for (int s = 0; s < sizes.length; s++) {
+                int width = sizes[s][0];
+                int height = sizes[s][1];
+                assertEquals(factors[s], registration.getCoarseFactor(width, height));
+                FloatProcessor scene = createImage(width + 80, height + 80, width);
+                FloatProcessor reference = crop(scene, 40, 40, width, height);
+                for (int[] shift : shifts) {
+                    FloatProcessor moving = crop(scene, 40 + shift[0], 40 + shift[1], width, height);
+                    addNoise(moving, width + shift[1]);
+                    String message = width + "x" + height + " shifted by " + shift[0] + ", " + shift[1];
+                    double[] whole = registration.findShiftCoarseToFine(reference, moving, factors[s], false);
+                    assertArrayEquals(message, new double[]{shift[0], shift[1]}, whole, 0);
+                    double[] subPixel = registration.findShiftCoarseToFine(reference, moving, factors[s], true);
+                    assertArrayEquals(message, new double[]{shift[0], shift[1]}, subPixel, 0.2);
+                    assertTrue(registration.getLastDuration() > 0);
+                    assertTrue(registration.getLastFullFrameEstimate() > 0);
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Returns the image with smooth random structures and a constant
+     * background, as a cell image.
+     */
+    static FloatProcessor createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int spot = 0; spot < 12; spot++) {
+            double cx = random.nextDouble() * width;
+            double cy = random.nextDouble() * height;
+            double sigma = 1.5 + random.nextDouble() * Math.min(width, height) / 16;
+            double amplitude = 50 + random.nextDouble() * 200;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double r2 = ((x - cx) * (x - cx) + (y - cy) * (y - cy)) / (2 * sigma * sigma);
+                    pixels[y * width + x] += (float) (amplitude * Math.exp(-r2));
+                }
+            }
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] += 20 + 5 * random.nextFloat();
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    /**
+     * Returns the image shifted by dx, dy with wrap-around.
+     */
+    static FloatProcessor shiftCircular(FloatProcessor ip, int dx, int dy) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        float[] source = (float[]) ip.getPixels();
+        float[] shifted = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sx = ((x - dx) % width + width) % width;
+                int sy = ((y - dy) % height + height) % height;
+                shifted[y * width + x] = source[sy * width + sx];
+            }
+        }
+        return new FloatProcessor(width, height, shifted);
+    }
+
+    /**
+     * Returns the width x height region of the image at (x0, y0).
+     */
+    static FloatProcessor crop(FloatProcessor ip, int x0, int y0, int width, int height) {
+        float[] source = (float[]) ip.getPixels();
+        float[] region = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(source, (y0 + y) * ip.getWidth() + x0, region, y * width, width);
+        }
+        return new FloatProcessor(width, height, region);
+    }
+
+    private static void addNoise(FloatProcessor ip, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = (float[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] += (float) random.nextGaussian();
+        }
+    }
+
+    /**
+     * The registration of the bleaching correction dialog before
+     * ImageRegistration: the peak of the FHT cross-correlation of the images,
+     * converted to the shift of the moving image.
+     */
+    private static int[] reference(ImageProcessor before, ImageProcessor after) {
+        FHT fht1 = new FHT(before.duplicate());
+        fht1.setShowProgress(false);
+        fht1.transform();
+        FHT fht2 = new FHT(after.duplicate());
+        fht2.setShowProgress(false);
+        fht2.transform();
+        FHT res = fht1.conjugateMultiply(fht2);
+        res.setShowProgress(false);
+        res.inverseTransform();
+        ImagePlus image = new ImagePlus("Result of registration", res);
+        ImageProcessor ip = image.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int maximum = 0;
+        int maxx = -1;
+        int maxy = -1;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (ip.getPixel(i, j) > maximum) {
+                    maximum = ip.getPixel(i, j);
+                    maxx = i;
+                    maxy = j;
+                }
+            }
+        }
+        int shiftX = maxx > width / 2 ? maxx - width : maxx;
+        int shiftY = maxy > height / 2 ? maxy - height : maxy;
+        return new int[]{shiftX, shiftY};
+    }
+}
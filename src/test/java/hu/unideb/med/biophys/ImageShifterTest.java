@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import ij.process.FloatProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares ImageShifter with the shifts of ShiftDialog it replaced, which
+ * moved the image by one direction at a time into new processors, and its
+ * sub-pixel shift with bilinear interpolation of the source pixels.
+ */
+public class ImageShifterTest {
+
+    @Test
+    public void testSameAsShiftDialog() {
+        int[][] sizes = {{1, 1}, {2, 3}, {7, 5}, {13, 11}, {64, 64}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            float[] image = createImage(width, height, width * height);
+            for (int dy = -height - 1; dy <= height + 1; dy++) {
+                for (int dx = -width - 1; dx <= width + 1; dx++) {
+                    float[] shifted = image.clone();
+                    ImageShifter.shift(shifted, width, height, dx, dy);
+                    assertArrayEquals(width + "x" + height + " shifted by " + dx + ", " + dy, reference(image, width, height, dx, dy), shifted, 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSeveralProcessors() {
+        int width = 31;
+        int height = 17;
+        float[] first = createImage(width, height, 1);
+        float[] second = createImage(width, height, 2);
+        FloatProcessor firstIp = new FloatProcessor(width, height, first.clone());
+        FloatProcessor secondIp = new FloatProcessor(width, height, second.clone());
+        ImageShifter.shift(-4, 9, firstIp, null, secondIp);
+        assertArrayEquals(reference(first, width, height, -4, 9), (float[]) firstIp.getPixels(), 0);
+        assertArrayEquals(reference(second, width, height, -4, 9), (float[]) secondIp.getPixels(), 0);
+    }
+
+    @Test
+    public void testBilinear() {
+        int[][] sizes = {{1, 1}, {2, 3}, {7, 5}, {13, 11}};
+        double[] offsets = {-2.75, -1, -0.5, -0.25, 0, 0.3, 1, 1.5, 3.125};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            float[] image = createImage(width, height, width + height);
+            float[] shifted = new float[width * height];
+            for (double dy : offsets) {
+                for (double dx : offsets) {
+                    ImageShifter.shift(image, shifted, width, height, dx, dy);
+                    assertArrayEquals(width + "x" + height + " shifted by " + dx + ", " + dy, bilinear(image, width, height, dx, dy), shifted, 1e-3f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWholePixelsExact() {
+        int width = 13;
+        int height = 11;
+        float[] image = createImage(width, height, 5);
+        float[] shifted = new float[width * height];
+        ImageShifter.shift(image, shifted, width, height, -3.0, 2.0);
+        assertArrayEquals(reference(image, width, height, -3, 2), shifted, 0);
+    }
+
+    /**
+     * Returns the image sampled at (x - dx, y - dy) with bilinear
+     * interpolation of the pixels around it, or 0 where a pixel with a
+     * non-zero weight is outside the image.
+     */
+    private static float[] bilinear(float[] image, int width, int height, double dx, double dy) {
+        float[] shifted = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sx = x - dx;
+                double sy = y - dy;
+                int x0 = (int) Math.floor(sx);
+                int y0 = (int) Math.floor(sy);
+                double fx = sx - x0;
+                double fy = sy - y0;
+                int x1 = fx > 0 ? x0 + 1 : x0;
+                int y1 = fy > 0 ? y0 + 1 : y0;
+                if (x0 < 0 || y0 < 0 || x1 >= width || y1 >= height) {
+                    continue;
+                }
+                shifted[y * width + x] = (float) ((1 - fx) * (1 - fy) * image[y0 * width + x0] + fx * (1 - fy) * image[y0 * width + x1]
+                        + (1 - fx) * fy * image[y1 * width + x0] + fx * fy * image[y1 * width + x1]);
+            }
+        }
+        return shifted;
+    }
+
+    /**
+     * Returns random pixels with some NaN values, as thresholded images.
+     */
+    static float[] createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(20) == 0 ? Float.NaN : random.nextFloat() * 1000;
+        }
+        return pixels;
+    }
+
+    /**
+     * The shifts of ShiftDialog before ImageShifter: vertically, then
+     * horizontally, each into a new width x height array.
+     */
+    private static float[] reference(float[] image, int width, int height, int dx, int dy) {
+        float[][] pixels = new float[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                pixels[i][j] = image[width * j + i];
+            }
+        }
+        if (dy < 0) {
+            pixels = shiftUp(pixels, width, height, -dy);
+        } else if (dy > 0) {
+            pixels = shiftDown(pixels, width, height, dy);
+        }
+        if (dx < 0) {
+            pixels = shiftLeft(pixels, width, height, -dx);
+        } else if (dx > 0) {
+            pixels = shiftRight(pixels, width, height, dx);
+        }
+        float[] shifted = new float[width * height];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                shifted[width * j + i] = pixels[i][j];
+            }
+        }
+        return shifted;
+    }
+
+    private static float[][] shiftUp(float[][] fpPixels, int width, int height, int value) {
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height - value; j++) {
+                fpPixels2[i][j] = fpPixels[i][j + value];
+            }
+        }
+        return fpPixels2;
+    }
+
+    private static float[][] shiftDown(float[][] fpPixels, int width, int height, int value) {
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = value; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[i][j - value];
+            }
+        }
+        return fpPixels2;
+    }
+
+    private static float[][] shiftLeft(float[][] fpPixels, int width, int height, int value) {
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width - value; i++) {
+            for (int j = 0; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[i + value][j];
+            }
+        }
+        return fpPixels2;
+    }
+
+    private static float[][] shiftRight(float[][] fpPixels, int width, int height, int value) {
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = value; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[i - value][j];
+            }
+        }
+        return fpPixels2;
+    }
+}
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.process.FloatProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares the cross-correlation of ParallelFftTransform with the one of
+ * ImageJ's FHT, which it replaces for registration.
+ */
+public class ParallelFftTransformTest {
+
+    @Test
+    public void testSameCorrelationAsFht() {
+        for (int threads : new int[]{1, 3}) {
+            ParallelFretEngine engine = new ParallelFretEngine(threads);
+            try {
+                RegistrationTransform fft = new ParallelFftTransform(engine);
+                RegistrationTransform fht = new FhtTransform();
+                for (int size : new int[]{4, 8, 32, 128, 256}) {
+                    Random random = new Random(size);
+                    float[] reference = new float[size * size];
+                    float[] moving = new float[size * size];
+                    for (int i = 0; i < reference.length; i++) {
+                        reference[i] = random.nextFloat() * 100;
+                        moving[i] = random.nextFloat() * 100;
+                    }
+                    float[] expected = fht.correlate(fht.forward(reference, size, size), fht.forward(moving, size, size), size, size);
+                    float[] actual = fft.correlate(fft.forward(reference, size, size), fft.forward(moving, size, size), size, size);
+                    float maximum = 0;
+                    for (float value : expected) {
+                        maximum = Math.max(maximum, Math.abs(value));
+                    }
+                    for (int i = 0; i < expected.length; i++) {
+                        assertEquals(size + "x" + size + " pixel " + i + ", " + threads + " threads", expected[i], actual[i], 1e-5 * maximum);
+                    }
+                }
+            } finally {
+                engine.shutdown();
+            }
+        }
+    }
+
+    /**
+     * ImageJ's FHT is wrong for 2 x 2 images, so the smallest sizes are
+     * compared with the definition of the circular cross-correlation.
+     */
+    @Test
+    public void testSmallSizesAgainstDefinition() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            RegistrationTransform fft = new ParallelFftTransform(engine);
+            for (int size : new int[]{2, 4, 8}) {
+                Random random = new Random(size);
+                float[] reference = new float[size * size];
+                float[] moving = new float[size * size];
+                for (int i = 0; i < reference.length; i++) {
+                    reference[i] = random.nextFloat() * 100;
+                    moving[i] = random.nextFloat() * 100;
+                }
+                float[] actual = fft.correlate(fft.forward(reference, size, size), fft.forward(moving, size, size), size, size);
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        double sum = 0;
+                        for (int v = 0; v < size; v++) {
+                            for (int u = 0; u < size; u++) {
+                                sum += reference[v * size + u] * moving[((v - y + size) % size) * size + (u - x + size) % size];
+                            }
+                        }
+                        assertEquals(size + "x" + size + " at " + x + ", " + y, sum, actual[y * size + x], 1e-5 * sum);
+                    }
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testRectangularAgainstDefinition() {
+        ParallelFretEngine engine = new ParallelFretEngine(3);
+        try {
+            RegistrationTransform[] transforms = {new ParallelFftTransform(engine), new FhtTransform()};
+            int[][] sizes = {{4, 2}, {2, 8}, {16, 4}, {8, 32}, {64, 16}};
+            for (RegistrationTransform transform : transforms) {
+                for (int[] size : sizes) {
+                    int width = size[0];
+                    int height = size[1];
+                    Random random = new Random(width * 1000 + height);
+                    float[] reference = new float[width * height];
+                    float[] moving = new float[width * height];
+                    for (int i = 0; i < reference.length; i++) {
+                        reference[i] = random.nextFloat() * 100;
+                        moving[i] = random.nextFloat() * 100;
+                    }
+                    float[] actual = transform.correlate(transform.forward(reference, width, height), transform.forward(moving, width, height), width, height);
+                    assertEquals(width * height, actual.length);
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            double sum = 0;
+                            for (int v = 0; v < height; v++) {
+                                for (int u = 0; u < width; u++) {
+                                    sum += reference[v * width + u] * moving[((v - y + height) % height) * width + (u - x + width) % width];
+                                }
+                            }
+                            String message = transform.getClass().getSimpleName() + " " + width + "x" + height + " at " + x + ", " + y;
+                            assertEquals(message, sum, actual[y * width + x], 1e-5 * sum);
+                        }
+                    }
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testSpectraNotModified() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            RegistrationTransform fft = new ParallelFftTransform(engine);
+            Random random = new Random(11);
+            float[] image = new float[64 * 64];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = random.nextFloat();
+            }
+            float[] original = image.clone();
+            float[] spectrum = fft.forward(image, 64, 64);
+            float[] spectrumCopy = spectrum.clone();
+            fft.correlate(spectrum, spectrum, 64, 64);
+            assertArrayEquals(original, image, 0);
+            assertArrayEquals(spectrumCopy, spectrum, 0);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testSameShiftAsFht() {
+        ParallelFretEngine engine = new ParallelFretEngine(4);
+        try {
+            ImageRegistration fft = new ImageRegistration(new ParallelFftTransform(engine));
+            ImageRegistration fht = new ImageRegistration(new FhtTransform());
+            int[][] sizes = {{64, 64}, {100, 75}, {131, 97}, {57, 200}};
+            int[][] shifts = {{0, 0}, {5, -3}, {-9, 7}, {-2, -12}};
+            for (int[] size : sizes) {
+                FloatProcessor reference = ImageRegistrationTest.createImage(size[0], size[1], size[0] * size[1]);
+                for (int[] shift : shifts) {
+                    FloatProcessor moving = ImageRegistrationTest.shiftCircular(reference, -shift[0], -shift[1]);
+                    String message = size[0] + "x" + size[1] + " shifted by " + shift[0] + ", " + shift[1];
+                    assertArrayEquals(message, fht.findShift(reference, moving), fft.findShift(reference, moving));
+                    assertArrayEquals(message, fht.findSubPixelShift(reference, moving), fft.findSubPixelShift(reference, moving), 1e-3);
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
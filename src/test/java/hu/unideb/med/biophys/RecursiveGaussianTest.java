@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertTrue;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the documented difference of RecursiveGaussian from ImageJ's
+ * GaussianBlur on noise, a sharp edge and smooth structures.
+ */
+public class RecursiveGaussianTest {
+
+    private static final double[] SIGMAS = {0.5, 0.8, 1, 1.5, 2, 3, 5, 10, 20};
+
+    @Test
+    public void testDocumentedErrorAgainstGaussianBlur() {
+        ParallelFretEngine engine = new ParallelFretEngine(2);
+        try {
+            int[][] sizes = {{37, 29}, {101, 67}, {128, 128}};
+            for (int[] size : sizes) {
+                for (int type = 0; type < 3; type++) {
+                    float[] image = createImage(size[0], size[1], type);
+                    for (double sigma : SIGMAS) {
+                        double[] error = compare(image, size[0], size[1], sigma, engine);
+                        String message = size[0] + "x" + size[1] + " image " + type + ", sigma " + sigma + ": max " + error[0] + ", RMS " + error[1];
+                        if (sigma < 1.5) {
+                            assertTrue(message, error[0] < 0.07 && error[1] < 0.03);
+                        } else {
+                            assertTrue(message, error[0] < 0.03 && error[1] < 0.012);
+                        }
+                    }
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallSigmaRejected() {
+        new RecursiveGaussian(0.4);
+    }
+
+    /**
+     * Returns pixel noise (type 0), a vertical edge (type 1) or a smooth
+     * pattern (type 2).
+     */
+    private static float[] createImage(int width, int height, int type) {
+        Random random = new Random(width * height);
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (type == 0) {
+                    pixels[y * width + x] = random.nextFloat();
+                } else if (type == 1) {
+                    pixels[y * width + x] = x < width / 2 ? 1 : 0;
+                } else {
+                    pixels[y * width + x] = (float) (Math.sin(x / 7.0) * Math.cos(y / 5.0));
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns the largest and the RMS difference of the two blurs, relative to
+     * the range of the image.
+     */
+    private static double[] compare(float[] image, int width, int height, double sigma, ParallelFretEngine engine) {
+        float[] recursive = image.clone();
+        new RecursiveGaussian(sigma).blur(recursive, width, height, engine);
+        FloatProcessor fp = new FloatProcessor(width, height, image.clone());
+        new GaussianBlur().blurGaussian(fp, sigma, sigma, 0.01);
+        float[] expected = (float[]) fp.getPixels();
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float value : image) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double maximum = 0;
+        double sum = 0;
+        for (int i = 0; i < image.length; i++) {
+            double difference = Math.abs(recursive[i] - expected[i]);
+            maximum = Math.max(maximum, difference);
+            sum += difference * difference;
+        }
+        double range = max - min;
+        return new double[]{maximum / range, Math.sqrt(sum / image.length) / range};
+    }
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the content keys of ResultCache and that rows are stored and read
+ * back.
+ */
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeyChangesWithContentAndParameters() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        File file = folder.newFile("image.lsm");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        FretParameters parameters = new FretParameters();
+        String key = cache.getKey(file, parameters);
+        assertEquals(key, cache.getKey(file, parameters));
+        assertNotEquals(key, cache.getKey(file, parameters.withAcceptorAsMask(!parameters.isUseAcceptorAsMask())));
+        File other = folder.newFile("other.lsm");
+        Files.write(other.toPath(), new byte[]{1, 2, 4});
+        assertNotEquals(key, cache.getKey(other, parameters));
+        Files.write(file.toPath(), new byte[]{1, 2, 3, 4});
+        assertNotEquals(key, cache.getKey(file, parameters));
+    }
+
+    @Test
+    public void testCopiedFileHits() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        File file = folder.newFile("image.czi");
+        Files.write(file.toPath(), new byte[]{5, 6, 7, 8});
+        FretParameters parameters = new FretParameters();
+        double[] values = new double[BatchProcessor.RESULT_HEADINGS.length];
+        values[2] = 0.5;
+        cache.put(cache.getKey(file, parameters), values);
+        File copy = new File(folder.newFolder("export"), "copy.czi");
+        Files.copy(file.toPath(), copy.toPath());
+        assertArrayEquals(values, cache.get(new ResultCache(cache.getDirectory()).getKey(copy, parameters)), 0);
+        File moved = new File(folder.getRoot(), "moved.czi");
+        Files.move(file.toPath(), moved.toPath());
+        assertArrayEquals(values, cache.get(cache.getKey(moved, parameters)), 0);
+    }
+
+    @Test
+    public void testRememberedHash() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        File file = folder.newFile("image.lsm");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        file.setLastModified(1000000000000L);
+        FretParameters parameters = new FretParameters();
+        String key = cache.getKey(file, parameters);
+        // the same length and modification time: the remembered hash is used
+        Files.write(file.toPath(), new byte[]{3, 2, 1});
+        file.setLastModified(1000000000000L);
+        assertEquals(key, cache.getKey(file, parameters));
+        file.setLastModified(1000000002000L);
+        assertNotEquals(key, cache.getKey(file, parameters));
+        assertEquals(0, cache.clear());
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        double[] values = new double[BatchProcessor.RESULT_HEADINGS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.25 - 1;
+        }
+        String key = cache.getKey(folder.newFile("image.czi"), new FretParameters());
+        assertNull(cache.get(key));
+        cache.put(key, values);
+        cache.put(key, values);
+        assertNull(cache.getWriteError());
+        assertArrayEquals(values, cache.get(key), 0);
+        assertEquals(1, cache.clear());
+        assertNull(cache.get(key));
+    }
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * an ImageJ plugin for analysis of acceptor photobleaching FRET images.
+ * %%
+ * Copyright (C) 2008 - 2022 AccPbFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Compares the spans of RoiMask with the mask ImageJ rasterizes for the ROI,
+ * and checks that the cache notices edited ROIs.
+ */
+public class RoiMaskTest {
+
+    @Test
+    public void testRectangle() {
+        assertSameAsImageJ(new Roi(5, 7, 31, 20), 64, 48);
+    }
+
+    @Test
+    public void testOval() {
+        assertSameAsImageJ(new OvalRoi(3, 4, 41, 33), 64, 48);
+        assertSameAsImageJ(new OvalRoi(2, 1, 6, 5), 64, 48);
+    }
+
+    @Test
+    public void testPolygon() {
+        assertSameAsImageJ(new PolygonRoi(new int[]{2, 50, 60, 10}, new int[]{3, 8, 45, 30}, 4, Roi.POLYGON), 64, 48);
+        assertSameAsImageJ(new PolygonRoi(new int[]{0, 40, 40, 20, 0}, new int[]{0, 0, 30, 10, 30}, 5, Roi.POLYGON), 64, 48);
+    }
+
+    @Test
+    public void testComposite() {
+        ShapeRoi ring = new ShapeRoi(new OvalRoi(4, 4, 40, 36)).not(new ShapeRoi(new OvalRoi(14, 12, 20, 18)));
+        assertSameAsImageJ(ring, 64, 48);
+        ShapeRoi twoParts = new ShapeRoi(new Roi(2, 2, 10, 10)).or(new ShapeRoi(new OvalRoi(30, 20, 25, 20)));
+        assertSameAsImageJ(twoParts, 64, 48);
+    }
+
+    @Test
+    public void testPartlyOutside() {
+        assertSameAsImageJ(new OvalRoi(-10, 30, 40, 30), 64, 48);
+        assertSameAsImageJ(new PolygonRoi(new int[]{50, 80, 70}, new int[]{-5, 20, 60}, 3, Roi.POLYGON), 64, 48);
+    }
+
+    @Test
+    public void testCache() {
+        Roi roi = new OvalRoi(3, 4, 41, 33);
+        RoiMask mask = RoiMask.get(roi, 64, 48);
+        assertSame(mask, RoiMask.get(roi, 64, 48));
+        assertNotSame(mask, RoiMask.get(roi, 65, 48));
+        assertNotSame(mask, RoiMask.get(new OvalRoi(3, 4, 41, 33), 64, 48));
+        roi.setLocation(5, 4);
+        RoiMask moved = RoiMask.get(roi, 64, 48);
+        assertNotSame(mask, moved);
+        assertEquals(5, moved.getBounds().x);
+    }
+
+    @Test
+    public void testEditedPolygon() {
+        EditablePolygonRoi roi = new EditablePolygonRoi(new int[]{0, 40, 40, 20, 0}, new int[]{0, 0, 30, 10, 30});
+        RoiMask mask = RoiMask.get(roi, 64, 48);
+        Rectangle bounds = roi.getBounds();
+        // moving an inner vertex changes the outline but not the bounds
+        roi.moveVertex(3, 10, 20);
+        assertEquals(bounds, roi.getBounds());
+        RoiMask edited = RoiMask.get(roi, 64, 48);
+        assertNotSame(mask, edited);
+        assertNotEquals(mask.getPixelCount(), edited.getPixelCount());
+        assertSameAsImageJ(roi, 64, 48);
+    }
+
+    private static void assertSameAsImageJ(Roi roi, int width, int height) {
+        ImageProcessor reference = roi.getMask();
+        Rectangle roiBounds = roi.getBounds();
+        RoiMask mask = RoiMask.get(roi, width, height);
+        int[] spans = mask.getSpans();
+        int count = 0;
+        for (int y = -1; y <= height; y++) {
+            boolean[] row = new boolean[width];
+            for (int s = mask.getFirstSpan(y); s < mask.getFirstSpan(y + 1); s++) {
+                for (int x = spans[2 * s]; x < spans[2 * s + 1]; x++) {
+                    row[x] = true;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                boolean expected = y >= 0 && y < height && roiBounds.contains(x, y)
+                        && (reference == null || reference.get(x - roiBounds.x, y - roiBounds.y) != 0);
+                assertEquals("x=" + x + " y=" + y, expected, row[x]);
+                assertEquals("x=" + x + " y=" + y, expected, mask.contains(x, y));
+                if (expected) {
+                    count++;
+                }
+            }
+        }
+        assertEquals(count, mask.getPixelCount());
+        float[] ones = new float[width * height];
+        Arrays.fill(ones, 1);
+        assertEquals(count, mask.sum(ones), 0);
+    }
+
+    /**
+     * A polygon whose vertices can be moved like by dragging a handle, which
+     * edits the coordinates in place and drops the mask cached by ImageJ.
+     */
+    private static class EditablePolygonRoi extends PolygonRoi {
+
+        EditablePolygonRoi(int[] xPoints, int[] yPoints) {
+            super(xPoints, yPoints, xPoints.length, Roi.POLYGON);
+        }
+
+        void moveVertex(int index, int x, int y) {
+            getXCoordinates()[index] = x - getBounds().x;
+            getYCoordinates()[index] = y - getBounds().y;
+            cachedMask = null;
+        }
+    }
+}